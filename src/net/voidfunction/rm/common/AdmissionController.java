@@ -0,0 +1,141 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.server.Request;
+
+/**
+ * Decides whether a node has the capacity to serve another download, so that
+ * when it is overloaded it can turn clients away straight away instead of
+ * letting everyone's downloads slow to a crawl. Three things are watched:
+ * - requests in flight: downloads being sent, by request threads or the
+ *   asynchronous sender
+ * - bytes queued: data the asynchronous sender has still to write
+ * - dispatch latency: how long requests wait between Jetty reading them and a
+ *   thread getting round to them, which grows as the thread pool backs up
+ * Any of them going over its limit (0 for no limit) means new downloads are
+ * refused until it comes back down.
+ */
+public class AdmissionController {
+
+	private int maxRequests;
+	private long maxQueuedBytes;
+	private long maxLatency;
+	private AsyncFileSender sender;
+
+	private AtomicInteger inFlight;
+	private AtomicLong rejected;
+
+	// Moving average of dispatch latency, in milliseconds. Updated without
+	// synchronization; the odd lost update doesn't matter for this.
+	private volatile long latency;
+
+	/**
+	 * Creates a new admission controller.
+	 * @param maxRequests most downloads in flight at once
+	 * @param maxQueuedBytes most bytes waiting in the asynchronous sender
+	 * @param maxLatency highest average dispatch latency, in milliseconds
+	 * @param sender the node's asynchronous sender, or null if it has none
+	 */
+	public AdmissionController(int maxRequests, long maxQueuedBytes, long maxLatency, AsyncFileSender sender) {
+		this.maxRequests = maxRequests;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.maxLatency = maxLatency;
+		this.sender = sender;
+		this.inFlight = new AtomicInteger();
+		this.rejected = new AtomicLong();
+	}
+
+	/**
+	 * Ask to serve a download for the given request. If this returns true,
+	 * release() must be called once the download is over.
+	 * @param request
+	 * @return whether the download may go ahead
+	 */
+	public boolean tryAdmit(HttpServletRequest request) {
+		if (request instanceof Request) {
+			long waited = System.currentTimeMillis() - ((Request)request).getTimeStamp();
+			if (waited >= 0)
+				latency += (waited - latency) / 8;
+		}
+
+		if ((maxLatency > 0 && latency > maxLatency)
+			|| (maxQueuedBytes > 0 && sender != null && sender.getQueuedBytes() > maxQueuedBytes)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		if (inFlight.incrementAndGet() > maxRequests && maxRequests > 0) {
+			inFlight.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Signal that an admitted download is over.
+	 */
+	public void release() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Get the number of downloads currently in flight.
+	 * @return
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Get the moving average of dispatch latency, in milliseconds.
+	 * @return
+	 */
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Get the number of downloads refused so far.
+	 * @return
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+}
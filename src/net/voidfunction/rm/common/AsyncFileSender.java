@@ -0,0 +1,369 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.voidfunction.rm.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.*;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.nio.ChannelEndPoint;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+
+/**
+ * Sends file data for suspended (asynchronous) requests in chunks, from a small
+ * shared pool of writer threads. A selector thread watches each client's socket
+ * and only hands a download to a writer once its socket can take more data, so
+ * slow clients wait in the selector instead of holding a thread each.
+ * 
+ * Servlet 3.0 has no way to be told when a response can be written without
+ * blocking, so we register Jetty's socket channel with a selector of our own
+ * purely for the readiness signal. The bytes themselves still go through the
+ * normal servlet output stream. If the connector doesn't give us a selectable
+ * channel, downloads just take turns on the writer threads.
+ * 
+ * When a BandwidthShaper is given, a download that has used up its allowance
+ * is parked on the selector thread until it may send again, rather than
+ * sleeping on a writer.
+ */
+public class AsyncFileSender {
+
+	/**
+	 * Transfers no larger than this aren't worth suspending the request for.
+	 */
+	public static final long MIN_ASYNC_LENGTH = 64 * 1024;
+
+	private static final int CHUNK_SIZE = 32 * 1024;
+	private static final long SWEEP_INTERVAL = 1000;
+
+	private Node node;
+	private ExecutorService pool;
+	private Selector selector;
+
+	// Transfers waiting to be (re)registered with the selector. Only the
+	// selector thread touches selection keys.
+	private ConcurrentLinkedQueue<Transfer> pending;
+
+	// All transfers currently waiting on a socket, so that ones whose socket
+	// was closed underneath them can be cleaned up.
+	private Set<Transfer> waiting;
+
+	// Transfers held back by the bandwidth shaper, soonest first. Only the
+	// selector thread touches this.
+	private PriorityQueue<Transfer> delayed;
+
+	private BandwidthShaper shaper;
+
+	// Bytes still to be written across all transfers
+	private AtomicLong queuedBytes;
+
+	/**
+	 * Creates a new sender with the given number of writer threads, and
+	 * starts its selector thread.
+	 * @param node
+	 * @param threads
+	 * @param shaper limits how fast data is sent, or null for no limit
+	 * @throws IOException
+	 */
+	public AsyncFileSender(Node node, int threads, BandwidthShaper shaper) throws IOException {
+		this.node = node;
+		this.shaper = shaper;
+		pool = Executors.newFixedThreadPool(threads);
+		selector = Selector.open();
+		pending = new ConcurrentLinkedQueue<Transfer>();
+		queuedBytes = new AtomicLong();
+		waiting = Collections.newSetFromMap(new ConcurrentHashMap<Transfer, Boolean>());
+		delayed = new PriorityQueue<Transfer>(16, new Comparator<Transfer>() {
+			public int compare(Transfer a, Transfer b) {
+				long diff = a.resumeAt - b.resumeAt;
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+
+		Thread selectorThread = new Thread(new SelectorLoop(), "AsyncFileSender");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * Start sending length bytes of data from the given stream, starting at
+	 * offset, to the response of a request that has been put into asynchronous
+	 * mode. Must be called from the thread handling the request. Returns
+	 * immediately; the context is completed and the stream closed once
+	 * everything has been written or the client goes away, at which point
+	 * onFinish (if not null) is run. If this throws, onFinish is never run.
+	 * @param context
+	 * @param in
+	 * @param offset
+	 * @param length
+	 * @param onFinish
+	 * @throws IOException
+	 */
+	public void send(AsyncContext context, InputStream in, long offset, long length, Runnable onFinish)
+		throws IOException {
+		context.setTimeout(0); // Dead clients are caught by the connector's idle timeout instead
+		ServletOutputStream out = context.getResponse().getOutputStream();
+		FileUtils.copyRange(in, out, offset, 0); // Just skip to the offset
+
+		// Find the client's socket, if the connector will let us
+		SelectableChannel channel = null;
+		AbstractHttpConnection connection = AbstractHttpConnection.getCurrentConnection();
+		if (connection != null) {
+			EndPoint endPoint = connection.getEndPoint();
+			if (endPoint instanceof ChannelEndPoint) {
+				ByteChannel byteChannel = ((ChannelEndPoint)endPoint).getChannel();
+				if (byteChannel instanceof SelectableChannel)
+					channel = (SelectableChannel)byteChannel;
+			}
+		}
+
+		TokenBucket bucket = (shaper != null ? shaper.connectionBucket(connection) : null);
+		Transfer transfer = new Transfer(context, in, out, channel, length, bucket, onFinish);
+		transfer.waitForWritable();
+	}
+
+	/**
+	 * Get the number of bytes still waiting to be sent, across all downloads.
+	 * @return
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Waits for client sockets to become writable and passes the matching
+	 * transfers on to the writer threads.
+	 */
+	private class SelectorLoop implements Runnable {
+		public void run() {
+			long lastSweep = System.currentTimeMillis();
+			while (true) {
+				long timeout = SWEEP_INTERVAL;
+				if (!delayed.isEmpty()) {
+					long untilNext = (delayed.peek().resumeAt - System.nanoTime()) / 1000000;
+					timeout = Math.max(1, Math.min(timeout, untilNext));
+				}
+				try {
+					selector.select(timeout);
+				} catch (IOException e) {
+					node.getLog().severe("Asynchronous file sender selector failed: " + e.getMessage());
+					return;
+				}
+
+				Transfer transfer;
+				while ((transfer = pending.poll()) != null)
+					transfer.register();
+
+				// Let through any transfers that have waited out their delay
+				long now = System.nanoTime();
+				while (!delayed.isEmpty() && delayed.peek().resumeAt - now <= 0) {
+					transfer = delayed.poll();
+					transfer.resumeAt = 0;
+					transfer.register();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid() || key.attachment() == null)
+						continue;
+					key.interestOps(0); // Don't report it again while a writer has it
+					transfer = (Transfer)key.attachment();
+					waiting.remove(transfer);
+					pool.execute(transfer);
+				}
+
+				// If Jetty closed a socket (e.g. idle timeout) its key was cancelled
+				// without ever being selected, so look for those now and then.
+				if (System.currentTimeMillis() - lastSweep >= SWEEP_INTERVAL) {
+					for (Transfer waitingTransfer : waiting) {
+						if (!waitingTransfer.channel.isOpen() && waiting.remove(waitingTransfer))
+							waitingTransfer.abort();
+					}
+					lastSweep = System.currentTimeMillis();
+				}
+			}
+		}
+	}
+
+	/**
+	 * One download in progress.
+	 */
+	private class Transfer implements Runnable {
+		private AsyncContext context;
+		private InputStream in;
+		private ServletOutputStream out;
+		private SelectableChannel channel;
+		private long remaining;
+		private byte[] buffer;
+		private boolean aborted;
+		private TokenBucket bucket;
+		private long resumeAt;
+		private Runnable onFinish;
+
+		public Transfer(AsyncContext context, InputStream in, ServletOutputStream out, SelectableChannel channel,
+			long length, TokenBucket bucket, Runnable onFinish) {
+			this.context = context;
+			this.in = in;
+			this.out = out;
+			this.channel = channel;
+			this.remaining = length;
+			this.bucket = bucket;
+			this.onFinish = onFinish;
+			queuedBytes.addAndGet(length);
+			this.buffer = new byte[(int)Math.min(CHUNK_SIZE, Math.max(length, 1))];
+		}
+
+		/**
+		 * Write the next chunk, then wait for the socket to be ready for the
+		 * one after.
+		 */
+		public void run() {
+			if (aborted) {
+				finish();
+				return;
+			}
+			try {
+				if (remaining > 0) {
+					int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+					if (read == -1)
+						throw new EOFException("File data ended early");
+					out.write(buffer, 0, read);
+					remaining -= read;
+					queuedBytes.addAndGet(-read);
+					if (shaper != null) {
+						long delay = shaper.reserve(bucket, read);
+						if (delay > 0)
+							resumeAt = System.nanoTime() + delay;
+					}
+				}
+				if (remaining > 0) {
+					waitForWritable();
+					return;
+				}
+			} catch (IOException e) {
+				// Usually just the client hanging up on us
+				node.getLog().debug("Asynchronous transfer aborted: " + e.getMessage());
+			}
+			finish();
+		}
+
+		/**
+		 * Queue this transfer to be run again once its socket is writable (and
+		 * any delay from the shaper is over).
+		 */
+		public void waitForWritable() {
+			if (channel == null && resumeAt == 0) {
+				pool.execute(this);
+				return;
+			}
+			pending.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Register interest in the socket becoming writable. Only called on the
+		 * selector thread. Keys are reused for later requests on the same
+		 * keep-alive connection, and go away when Jetty closes the socket.
+		 */
+		public void register() {
+			if (resumeAt != 0) {
+				delayed.add(this);
+				return;
+			}
+			if (channel == null) {
+				pool.execute(this);
+				return;
+			}
+			waiting.add(this);
+			try {
+				SelectionKey key = channel.keyFor(selector);
+				if (key == null)
+					channel.register(selector, SelectionKey.OP_WRITE, this);
+				else {
+					key.attach(this);
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+			} catch (ClosedChannelException e) {
+				if (waiting.remove(this))
+					abort();
+			} catch (CancelledKeyException e) {
+				if (waiting.remove(this))
+					abort();
+			}
+		}
+
+		private void abort() {
+			aborted = true;
+			pool.execute(this);
+		}
+
+		private void finish() {
+			queuedBytes.addAndGet(-remaining);
+			remaining = 0;
+			if (channel != null) {
+				SelectionKey key = channel.keyFor(selector);
+				if (key != null)
+					key.attach(null);
+			}
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+			try {
+				context.complete();
+			} catch (IllegalStateException e) {
+				// Already completed or timed out
+			}
+			if (onFinish != null)
+				onFinish.run();
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Limits how fast a node sends file data: overall, so that downloads can't
+ * saturate the node's uplink and starve the cluster's own traffic, and per
+ * connection, so that one fast client can't take the whole allowance. Both
+ * limits are token buckets counted in bytes.
+ */
+public class BandwidthShaper {
+
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	// Never let a bucket be smaller than this, or a single chunk could
+	// never be sent without waiting.
+	private static final long MIN_BURST = 64 * 1024;
+
+	private TokenBucket global;
+	private long connectionRate;
+
+	// Each connection's bucket, kept for as long as the connection is
+	private Map<Object, TokenBucket> connections = Collections.synchronizedMap(new WeakHashMap<Object, TokenBucket>());
+
+	/**
+	 * Creates a new shaper. Either rate may be 0 for no limit.
+	 * @param globalRate bytes per second for all connections together
+	 * @param connectionRate bytes per second for each connection
+	 */
+	public BandwidthShaper(long globalRate, long connectionRate) {
+		if (globalRate > 0)
+			global = new TokenBucket(globalRate, burstFor(globalRate));
+		this.connectionRate = connectionRate;
+	}
+
+	/**
+	 * Get the bucket for the given connection, creating it the first time it
+	 * is asked for, or null if there is no per connection limit. Shared by
+	 * everything sent to that connection, across all its requests. A null
+	 * connection (not known) gets a bucket of its own.
+	 * @param connection
+	 * @return
+	 */
+	public TokenBucket connectionBucket(Object connection) {
+		if (connectionRate <= 0)
+			return null;
+		if (connection == null)
+			return new TokenBucket(connectionRate, burstFor(connectionRate));
+		synchronized (connections) {
+			TokenBucket bucket = connections.get(connection);
+			if (bucket == null) {
+				bucket = new TokenBucket(connectionRate, burstFor(connectionRate));
+				connections.put(connection, bucket);
+			}
+			return bucket;
+		}
+	}
+
+	/**
+	 * Account for bytes about to be sent to a connection. Returns how long,
+	 * in nanoseconds, the sender should wait before sending more.
+	 * @param connection the connection's bucket, or null
+	 * @param bytes
+	 * @return
+	 */
+	public long reserve(TokenBucket connection, long bytes) {
+		long delay = 0;
+		if (global != null)
+			delay = global.reserve(bytes);
+		if (connection != null)
+			delay = Math.max(delay, connection.reserve(bytes));
+		return delay;
+	}
+
+	/**
+	 * Like FileUtils.copyRange, but blocks the calling thread as needed to
+	 * keep within the limits.
+	 * @param in
+	 * @param out
+	 * @param offset
+	 * @param length
+	 * @param connection the connection's bucket (see connectionBucket()), or null
+	 * @throws IOException
+	 */
+	public void copyRange(InputStream in, OutputStream out, long offset, long length, TokenBucket connection)
+		throws IOException {
+		FileUtils.copyRange(in, out, offset, 0); // Just skip to the offset
+
+		byte[] buffer = new byte[(int)Math.min(CHUNK_SIZE, Math.max(length, 1))];
+		while (length > 0) {
+			int read = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+			if (read == -1)
+				throw new EOFException("File data ended before end of range");
+			out.write(buffer, 0, read);
+			length -= read;
+
+			long delay = reserve(connection, read);
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while sending file data");
+				}
+			}
+		}
+	}
+
+	// About a quarter of a second's worth of data.
+	private static long burstFor(long rate) {
+		return Math.max(MIN_BURST, rate / 4);
+	}
+
+}
@@ -0,0 +1,333 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+import org.eclipse.jetty.server.AbstractHttpConnection;
+
+/**
+ * Servlet that sends many files in one response, so that a client needing
+ * hundreds of small files doesn't pay for hundreds of requests (and, on the
+ * master, redirects).
+ * 
+ * The file IDs are given as for HTTPUtils.readIdList(), by GET or POST, and the
+ * files are sent as an uncompressed tar archive, one [id]/[name] entry per file
+ * in the order asked for. The data is copied straight from the repository, one
+ * file at a time, and the total length is known up front. If any file is
+ * missing, nothing is sent but a 404. On the master, a BundleLocator may send
+ * the client to a worker holding all the files instead.
+ * 
+ * With a URLSigner, the master signs the redirects it gives out for the list of
+ * IDs, and workers only serve bundles whose signature is valid.
+ * 
+ * Bundles sent locally are paced by the same BandwidthShaper, and count against
+ * the same AdmissionController, as the node's single-file downloads.
+ */
+public class BundleServlet extends HttpServlet {
+
+	private static final long serialVersionUID = -6218364917216006932L;
+
+	private static final int BLOCK = 512;
+	private static final byte[] ZEROS = new byte[2 * BLOCK];
+
+	private Node node;
+	private BundleLocator locator;
+	private FileDownloadListener dlListener;
+	private ClientRateLimiter clientLimiter;
+	private URLSigner signer;
+	private BandwidthShaper shaper;
+	private AdmissionController admission;
+	private int maxIds;
+	private int retryAfter;
+
+	/**
+	 * Creates a new BundleServlet. locator and dlListener may be null if their
+	 * functionality is not needed (e.g. in worker nodes)
+	 * @param node
+	 * @param locator
+	 * @param dlListener
+	 */
+	public BundleServlet(Node node, BundleLocator locator, FileDownloadListener dlListener) {
+		this.node = node;
+		this.locator = locator;
+		this.dlListener = dlListener;
+		this.maxIds = node.getConfig().getInt("bundle.maxids", 1000);
+		this.retryAfter = node.getConfig().getInt("http.admission.retryafter", 5);
+	}
+
+	/**
+	 * Set the ClientRateLimiter used to turn away clients making too many
+	 * requests. Each file asked for counts as one request.
+	 * @param clientLimiter
+	 */
+	public void setClientLimiter(ClientRateLimiter clientLimiter) {
+		this.clientLimiter = clientLimiter;
+	}
+
+	/**
+	 * Set the URLSigner used to sign redirects (if we have a BundleLocator) or
+	 * to check requests have been signed (if not). May be null.
+	 * @param signer
+	 */
+	public void setURLSigner(URLSigner signer) {
+		this.signer = signer;
+	}
+
+	/**
+	 * Set the BandwidthShaper that limits how fast bundles are sent, and the
+	 * AdmissionController that decides whether we are too busy to send one.
+	 * Either may be null. These should be the ones the node's FileServlet uses,
+	 * so that bundles and single files share the same limits.
+	 * @param shaper
+	 * @param admission
+	 */
+	public void setDownloadLimits(BandwidthShaper shaper, AdmissionController admission) {
+		this.shaper = shaper;
+		this.admission = admission;
+	}
+
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+		IOException {
+		serve(request, response);
+	}
+
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+		IOException {
+		serve(request, response);
+	}
+
+	private void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		Set<String> ids = HTTPUtils.readIdList(request, maxIds);
+		if (ids.size() == 0) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No file IDs given");
+			return;
+		}
+		if (ids.size() > maxIds) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "At most " + maxIds
+				+ " IDs per request");
+			return;
+		}
+		if (clientLimiter != null && !clientLimiter.check(request, response, ids.size()))
+			return;
+		if (signer != null && locator == null) {
+			URLSigner.Check check = signer.check(signatureSubject(ids), request.getParameter("expires"),
+				request.getParameter("sig"));
+			if (check != URLSigner.Check.VALID) {
+				node.getLog().info("Bundle of " + ids.size() + " files requested by " + request.getRemoteAddr()
+					+ " [Result: Signature " + check.name().toLowerCase() + "]");
+				response.sendError(HttpServletResponse.SC_FORBIDDEN, "Signature " + check.name().toLowerCase());
+				return;
+			}
+		}
+
+		List<RMFile> files = new ArrayList<RMFile>(ids.size());
+		StringBuilder missing = null;
+		for (String id : ids) {
+			RMFile file = node.getFileRepository().getFileById(id);
+			if (file != null)
+				files.add(file);
+			else {
+				missing = (missing == null ? new StringBuilder() : missing.append(' '));
+				missing.append(id);
+			}
+		}
+		if (missing != null) {
+			node.getLog().info("Bundle of " + ids.size() + " files requested by " + request.getRemoteAddr()
+				+ " [Result: Not found]");
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Files not found: " + missing);
+			return;
+		}
+
+		if (dlListener != null)
+			for (RMFile file : files)
+				dlListener.fileDownloaded(file);
+
+		String redirBase = null;
+		if (locator != null)
+			redirBase = locator.locateBundle(ids, request.getRemoteAddr());
+		if (redirBase != null) {
+			node.getLog().info("Bundle of " + ids.size() + " files requested by " + request.getRemoteAddr()
+				+ " [Result: Redirect]");
+			// 307 so that a POSTed list of IDs is sent on too
+			String query = request.getQueryString();
+			if (signer != null)
+				query = (query == null ? "" : query + "&") + signer.sign(signatureSubject(ids));
+			response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+			response.setHeader("Location", redirBase + request.getRequestURI() + (query == null ? "" : "?" + query));
+			return;
+		}
+
+		// Turn the bundle away rather than pile more work on an overloaded node.
+		// Sending the client back to the master would only bring it here again.
+		if (admission != null && !admission.tryAdmit(request)) {
+			node.getLog().info("Bundle of " + ids.size() + " files requested by " + request.getRemoteAddr()
+				+ " [Result: Overloaded]");
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setHeader("Retry-After", String.valueOf(retryAfter));
+			response.setHeader("Cache-Control", "no-store");
+			return;
+		}
+		try {
+			node.getLog().info("Bundle of " + ids.size() + " files requested by " + request.getRemoteAddr()
+				+ " [Result: Found locally]");
+			sendBundle(response, files);
+		} finally {
+			if (admission != null)
+				admission.release();
+		}
+	}
+
+	// Send the files as a tar archive. Cached files are sent from memory, unless
+	// we're rate limited; the rest are streamed from the repository.
+	private void sendBundle(HttpServletResponse response, List<RMFile> files) throws IOException {
+		long length = 2 * BLOCK; // End-of-archive marker
+		for (RMFile file : files)
+			length += BLOCK + padded(file.getSize());
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/x-tar");
+		response.setHeader("Content-Length", String.valueOf(length));
+		response.setHeader("Cache-Control", "no-store");
+
+		OutputStream out = response.getOutputStream();
+		HotFileCache cache = (shaper == null ? node.getFileRepository().getCache() : null);
+		TokenBucket connection = (shaper != null ? shaper.connectionBucket(AbstractHttpConnection
+			.getCurrentConnection()) : null);
+		try {
+			for (RMFile file : files) {
+				out.write(tarHeader(file));
+				HotFileCache.CachedFile cached = (cache != null ? cache.get(file.getId()) : null);
+				if (cached != null) {
+					Channels.newChannel(out).write(cached.getData());
+				} else {
+					InputStream in = node.getFileRepository().getFileData(file.getId());
+					if (in == null)
+						throw new IOException("File " + file.getId() + " was removed while being sent");
+					try {
+						if (shaper != null)
+							shaper.copyRange(in, out, 0, file.getSize(), connection);
+						else
+							FileUtils.copyRange(in, out, 0, file.getSize());
+					} finally {
+						in.close();
+					}
+				}
+				out.write(ZEROS, 0, (int)(padded(file.getSize()) - file.getSize()));
+			}
+			out.write(ZEROS, 0, 2 * BLOCK);
+		} catch (IOException e) {
+			// Drop the connection, so the client can see the archive is incomplete
+			AbstractHttpConnection.getCurrentConnection().getEndPoint().close();
+			throw e;
+		}
+	}
+
+	// What a bundle's signature covers: the IDs, in order
+	private static String signatureSubject(Set<String> ids) {
+		StringBuilder subject = new StringBuilder("bundle");
+		for (String id : ids)
+			subject.append(' ').append(id);
+		return subject.toString();
+	}
+
+	// Round a size up to a whole number of tar blocks
+	private static long padded(long size) {
+		return (size + BLOCK - 1) / BLOCK * BLOCK;
+	}
+
+	// Build the (POSIX ustar) header block for a file's entry in the archive
+	private static byte[] tarHeader(RMFile file) throws IOException {
+		byte[] header = new byte[BLOCK];
+		// The ID goes in the prefix field, so the name can have the full 100 bytes
+		putString(header, 0, 100, file.getName().replace('/', '_').replace('\\', '_'));
+		putOctal(header, 100, 8, 0644); // Mode
+		putOctal(header, 108, 8, 0); // Owner
+		putOctal(header, 116, 8, 0); // Group
+		putSize(header, 124, file.getSize());
+		putOctal(header, 136, 12, file.getUploaded() / 1000);
+		header[156] = '0'; // Regular file
+		putString(header, 257, 6, "ustar");
+		header[263] = '0';
+		header[264] = '0';
+		putString(header, 345, 155, file.getId());
+
+		// The checksum is worked out with its own field full of spaces
+		for (int i = 148; i < 156; i++)
+			header[i] = ' ';
+		long checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xff;
+		putOctal(header, 148, 7, checksum);
+		return header;
+	}
+
+	// Write a string into a header field as UTF-8, cutting it off if too long
+	private static void putString(byte[] header, int offset, int length, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+	}
+
+	// Write a number into a header field as zero-padded octal digits, leaving
+	// room for a terminating NUL
+	private static void putOctal(byte[] header, int offset, int length, long value) {
+		for (int i = offset + length - 2; i >= offset; i--) {
+			header[i] = (byte)('0' + (value & 7));
+			value >>>= 3;
+		}
+		header[offset + length - 1] = 0;
+	}
+
+	// Write the size field, which in octal only goes up to 8 GB; larger sizes
+	// use the binary (base-256) form that GNU tar and others understand
+	private static void putSize(byte[] header, int offset, long size) {
+		if (size < 077777777777L) {
+			putOctal(header, offset, 12, size);
+			return;
+		}
+		for (int i = offset + 11; i > offset; i--) {
+			header[i] = (byte)size;
+			size >>>= 8;
+		}
+		header[offset] = (byte)0x80;
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.voidfunction.rm.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An inclusive range of bytes within a file, as requested through the HTTP
+ * Range header. Provides parsing of Range headers against a known file size.
+ */
+public class ByteRange {
+
+	// Requests asking for more ranges than this are treated as if they had no
+	// Range header at all, rather than making us seek all over the file.
+	private static final int MAX_RANGES = 16;
+
+	private long start, end;
+
+	/**
+	 * Creates a new range covering the bytes from start to end, inclusive.
+	 * @param start
+	 * @param end
+	 */
+	public ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Parse the value of a Range header for a file of the given size. Returns
+	 * null if the header is missing, malformed or otherwise should be ignored
+	 * (in which case the whole file should be sent), or an empty list if the
+	 * header is valid but none of its ranges can be satisfied (416).
+	 * @param header
+	 * @param size
+	 * @return
+	 */
+	public static List<ByteRange> parse(String header, long size) {
+		if (header == null)
+			return null;
+		header = header.trim();
+		if (!header.startsWith("bytes="))
+			return null;
+
+		List<ByteRange> ranges = new ArrayList<ByteRange>();
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+
+		long total = 0;
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0)
+				return null;
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+
+			long start, end;
+			try {
+				if (first.length() == 0) {
+					// Suffix range: the last n bytes of the file
+					long suffix = Long.parseLong(last);
+					if (suffix < 0)
+						return null;
+					if (suffix == 0)
+						continue;
+					start = Math.max(0, size - suffix);
+					end = size - 1;
+				} else {
+					start = Long.parseLong(first);
+					end = (last.length() == 0) ? Long.MAX_VALUE : Long.parseLong(last);
+					if (start < 0 || end < start)
+						return null;
+					end = Math.min(end, size - 1);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+
+			if (start >= size)
+				continue; // Unsatisfiable, but others may still be fine
+			ranges.add(new ByteRange(start, end));
+			total += end - start + 1;
+		}
+
+		// Asking for more than the whole file several times over isn't worth
+		// honoring; just send the file once.
+		if (total > size && ranges.size() > 1)
+			return null;
+		return ranges;
+	}
+
+	/**
+	 * Get the offset of the first byte in this range.
+	 * @return
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Get the offset of the last byte in this range.
+	 * @return
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Get the number of bytes covered by this range.
+	 * @return
+	 */
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * Get the value of a Content-Range header describing this range within a
+	 * file of the given size.
+	 * @param size
+	 * @return
+	 */
+	public String toContentRange(long size) {
+		return "bytes " + start + "-" + end + "/" + size;
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Limits how many requests each client address may make per second, so that
+ * one client hammering a node can't slow it down for everyone else (or, on the
+ * master, inflate the download counts used to decide on replicas).
+ * 
+ * Memory use is fixed however many clients there are: rather than a bucket per
+ * address, there is a table of token buckets (kept as in TokenBucket, as a
+ * single "paid until" time each) and every address hashes to two of them. A
+ * client's usage is the lower of its two buckets, and only buckets at that
+ * level are charged, like a count-min sketch with conservative update. An
+ * innocent client is only limited if both its buckets are shared with heavy
+ * users. All updates are lock-free.
+ */
+public class ClientRateLimiter {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final AtomicLongArray paidUntil;
+	private final int mask;
+	private final long rate;
+	private final int burst;
+	private final long costNanos;
+	private final long burstNanos;
+
+	/**
+	 * Creates a new rate limiter.
+	 * @param rate requests allowed per second, per client
+	 * @param burst requests a client may make at once after a quiet period
+	 * @param slots number of buckets to keep, rounded up to a power of two
+	 */
+	public ClientRateLimiter(int rate, int burst, int slots) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("Rate must be positive");
+		int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+		this.paidUntil = new AtomicLongArray(size);
+		this.mask = size - 1;
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.costNanos = NANOS_PER_SECOND / rate;
+		this.burstNanos = this.burst * costNanos;
+		long now = System.nanoTime();
+		for (int i = 0; i < size; i++)
+			paidUntil.set(i, now);
+	}
+
+	/**
+	 * Get the number of requests allowed per second, per client.
+	 * @return
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Get the number of requests a client may make at once.
+	 * @return
+	 */
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Count the given number of requests against a client, if it is allowed
+	 * to make them now.
+	 * @param clientAddr
+	 * @param requests
+	 * @return 0 if the requests may go ahead, otherwise roughly how long (in
+	 * nanoseconds) the client should wait before trying again
+	 */
+	public long tryAcquire(String clientAddr, int requests) {
+		long h = 0xcbf29ce484222325L; // 64-bit FNV-1a
+		for (int i = 0; i < clientAddr.length(); i++) {
+			h ^= clientAddr.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 29;
+		int slot1 = (int)h & mask;
+		int slot2 = (int)(h >>> 32) & mask;
+		if (slot2 == slot1)
+			slot2 = (slot1 + 1) & mask;
+
+		long now = System.nanoTime();
+		long cost = requests * costNanos;
+		// Start from whichever of the client's buckets is least used
+		long paid = Math.max(now, Math.min(paidUntil.get(slot1), paidUntil.get(slot2)));
+		long next = paid + cost;
+		if (next - now > burstNanos)
+			return next - now - burstNanos;
+		raise(slot1, next);
+		raise(slot2, next);
+		return 0;
+	}
+
+	/**
+	 * Check whether a request may go ahead, and if not, answer it with 429 Too
+	 * Many Requests. Requests that resolve several files at once may count as
+	 * more than one (up to the burst size).
+	 * @param request
+	 * @param response
+	 * @param requests
+	 * @return whether the request may go ahead
+	 */
+	public boolean check(HttpServletRequest request, HttpServletResponse response, int requests) {
+		long wait = tryAcquire(request.getRemoteAddr(), Math.min(requests, burst));
+		if (wait == 0)
+			return true;
+		response.setStatus(HTTPUtils.SC_TOO_MANY_REQUESTS);
+		response.setHeader("Retry-After", String.valueOf((wait + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND));
+		response.setHeader("Cache-Control", "no-store");
+		return false;
+	}
+
+	// Push a bucket's "paid until" time up to at least the given time. Buckets
+	// already past it (from other clients sharing them) are left alone.
+	private void raise(int slot, long time) {
+		while (true) {
+			long prev = paidUntil.get(slot);
+			if (prev - time >= 0 || paidUntil.compareAndSet(slot, prev, time))
+				return;
+		}
+	}
+
+}
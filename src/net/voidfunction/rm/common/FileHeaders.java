@@ -0,0 +1,91 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Response header values for a file. The data under a file ID never changes,
+ * so these are worked out once per file (see RMFile.getHeaders()) instead of
+ * on every request.
+ */
+public class FileHeaders {
+
+	private final String etag, gzipEtag, lastModified, contentLength;
+
+	/**
+	 * Work out the header values for the given file.
+	 * @param file
+	 */
+	public FileHeaders(RMFile file) {
+		String hash = Hex.encodeHexString(file.getHash());
+		this.etag = "\"" + hash + "\"";
+		// The compressed copy is a different representation, so gets its own tag
+		this.gzipEtag = "\"" + hash + "-gzip\"";
+		this.lastModified = HTTPUtils.formatDate(file.getUploaded());
+		this.contentLength = String.valueOf(file.getSize());
+	}
+
+	/**
+	 * Get the (quoted) entity tag of the file's data.
+	 * @return
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * Get the (quoted) entity tag of the gzip-compressed copy of the file's data.
+	 * @return
+	 */
+	public String getGzipETag() {
+		return gzipEtag;
+	}
+
+	/**
+	 * Get the file's upload time, formatted for the Last-Modified header.
+	 * @return
+	 */
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Get the file's size, formatted for the Content-Length header.
+	 * @return
+	 */
+	public String getContentLength() {
+		return contentLength;
+	}
+
+}
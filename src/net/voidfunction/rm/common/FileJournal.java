@@ -0,0 +1,482 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a FileRepository's list of files on disk without rewriting all of it
+ * on every change. Each file added or removed is appended to a journal as a
+ * small checksummed record, so a change costs the same however many files
+ * there are. Every so often the whole list is written out as a snapshot
+ * (files.dat) and the journal up to that point thrown away.
+ * 
+ * Records are written by a background thread, which writes and syncs whatever
+ * has built up while it was busy with the last lot in one go (group commit).
+ * Callers that need a change to be on disk wait for it with sync().
+ * 
+ * The journal is split into numbered segments (files.journal.<n>), and a new
+ * one is started for each snapshot. A snapshot records the segment it was
+ * taken at, and only that segment and later ones are replayed on top of it.
+ * Loading stops at the first record that is cut short or fails its checksum,
+ * as happens when the node dies halfway through a write.
+ */
+public class FileJournal {
+
+	private static final String JOURNAL_PREFIX = "files.journal.";
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_REMOVE = 2;
+
+	// Largest record we'll believe the length of when replaying
+	private static final int MAX_RECORD = 1024 * 1024;
+
+	private File directory;
+	private File snapshotFile;
+	private RMLog log;
+
+	// Records waiting to be written (byte arrays, or ROTATE to start a new segment)
+	private static final Object ROTATE = new Object();
+	private List<Object> pending = new ArrayList<Object>();
+	private long appended, committed;
+
+	// Numbers of the records that could not be written, as ranges from first
+	// to last, so that sync() can tell whoever is waiting for them
+	private TreeMap<Long, Long> failed = new TreeMap<Long, Long>();
+	private int generation;
+	private int records;
+
+	private FileChannel segment;
+
+	/**
+	 * Creates a journal for the repository in the given directory.
+	 * @param directory
+	 * @param log
+	 */
+	public FileJournal(File directory, RMLog log) {
+		this.directory = directory;
+		this.snapshotFile = new File(directory, "files.dat");
+		this.log = log;
+	}
+
+	/**
+	 * Get the file the snapshot is kept in.
+	 * @return
+	 */
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * Read the latest snapshot and replay the journal on top of it, returning
+	 * the list of files, then start writing new records. Returns null if there
+	 * is neither a snapshot nor a journal yet.
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized HashMap<String, RMFile> load() throws IOException {
+		HashMap<String, RMFile> files = null;
+		int snapshotGeneration = 0;
+		try {
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+			try {
+				files = (HashMap<String, RMFile>)in.readObject();
+				try {
+					snapshotGeneration = in.readInt();
+				} catch (EOFException e) {
+					// Saved before there was a journal
+				}
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			// No snapshot yet
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unreadable file list: " + e.getMessage());
+		}
+
+		// Replay the segments written since the snapshot, in order
+		generation = snapshotGeneration;
+		for (int segmentGeneration : listSegments()) {
+			if (segmentGeneration < snapshotGeneration)
+				continue;
+			File file = segmentFile(segmentGeneration);
+			if (file.length() == 0) {
+				file.delete(); // Nothing happened after it was started
+				continue;
+			}
+			if (files == null)
+				files = new HashMap<String, RMFile>();
+			records += replay(file, files);
+			generation = Math.max(generation, segmentGeneration);
+		}
+
+		// Always carry on in a new segment, never after a possibly torn record
+		generation++;
+		segment = openSegment(generation);
+		Thread committer = new Thread(new Committer(), "file-journal");
+		committer.setDaemon(true);
+		committer.start();
+		return files;
+	}
+
+	/**
+	 * Journal the addition of a file. Returns a number to pass to sync() to
+	 * wait for the record to be on disk.
+	 * @param file
+	 * @return
+	 */
+	public long add(RMFile file) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(RECORD_ADD);
+			out.writeUTF(file.getId());
+			out.writeUTF(file.getName());
+			out.writeUTF(file.getMimetype());
+			out.writeLong(file.getSize());
+			byte[] hash = file.getHash();
+			out.writeShort(hash == null ? -1 : hash.length);
+			if (hash != null)
+				out.write(hash);
+			out.writeLong(file.getUploaded());
+			return append(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // Can't happen writing to memory
+		}
+	}
+
+	/**
+	 * Journal the removal of a file. Returns a number to pass to sync() to
+	 * wait for the record to be on disk.
+	 * @param id
+	 * @return
+	 */
+	public long remove(String id) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(RECORD_REMOVE);
+			out.writeUTF(id);
+			return append(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Wait until the record with the given number, and all before it, have
+	 * been written. Throws if the record could not be written.
+	 * @param number
+	 * @throws IOException
+	 */
+	public synchronized void sync(long number) throws IOException {
+		boolean interrupted = false;
+		while (committed < number) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		Map.Entry<Long, Long> failure = failed.floorEntry(number);
+		if (failure != null && failure.getValue() >= number)
+			throw new IOException("Could not save change to file database");
+	}
+
+	/**
+	 * Get the number of records journaled since the last snapshot.
+	 * @return
+	 */
+	public synchronized int getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Start a new segment for the records that follow, and return its number
+	 * for the snapshot that will replace the ones before it. Must be called in
+	 * step with the changes being journaled, so that the snapshot holds
+	 * exactly what went into the earlier segments.
+	 * @return
+	 */
+	public synchronized int rotate() {
+		pending.add(ROTATE);
+		appended++;
+		records = 0;
+		notifyAll();
+		return ++generation;
+	}
+
+	/**
+	 * Write a snapshot of the file list, taken when rotate() returned the
+	 * given segment number, then delete the segments it replaces. The old
+	 * snapshot is only replaced once the new one is safely on disk.
+	 * @param files
+	 * @param snapshotGeneration
+	 * @throws IOException
+	 */
+	public void writeSnapshot(HashMap<String, RMFile> files, int snapshotGeneration) throws IOException {
+		File temp = new File(directory, "files.dat.tmp");
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fileOut));
+			out.writeObject(files);
+			out.writeInt(snapshotGeneration);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		if (!temp.renameTo(snapshotFile)) {
+			// Some platforms won't rename over an existing file
+			snapshotFile.delete();
+			if (!temp.renameTo(snapshotFile))
+				throw new IOException("Could not replace " + snapshotFile);
+		}
+
+		for (int segmentGeneration : listSegments()) {
+			if (segmentGeneration < snapshotGeneration)
+				segmentFile(segmentGeneration).delete();
+		}
+	}
+
+	// Queue a record to be written
+	private synchronized long append(byte[] record) {
+		pending.add(record);
+		records++;
+		notifyAll();
+		return ++appended;
+	}
+
+	// The numbers of the journal segments in the directory, in order
+	private List<Integer> listSegments() {
+		List<Integer> segments = new ArrayList<Integer>();
+		String[] names = directory.list();
+		if (names == null)
+			return segments;
+		for (String name : names) {
+			if (!name.startsWith(JOURNAL_PREFIX))
+				continue;
+			try {
+				segments.add(Integer.parseInt(name.substring(JOURNAL_PREFIX.length())));
+			} catch (NumberFormatException e) {
+				// Not one of ours
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private File segmentFile(int segmentGeneration) {
+		return new File(directory, JOURNAL_PREFIX + segmentGeneration);
+	}
+
+	private FileChannel openSegment(int segmentGeneration) throws IOException {
+		return new FileOutputStream(segmentFile(segmentGeneration), true).getChannel();
+	}
+
+	// Apply a segment's records to the list of files, stopping at the first bad
+	// one, which is cut off along with anything after it. Returns the number of
+	// good records.
+	private int replay(File file, HashMap<String, RMFile> files) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		int count = 0;
+		long good = 0;
+		boolean damaged = false;
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break; // Clean end
+				}
+				int checksum;
+				byte[] record;
+				try {
+					checksum = in.readInt();
+					if (length <= 0 || length > MAX_RECORD)
+						throw new IOException("Bad record length " + length);
+					record = new byte[length];
+					in.readFully(record);
+					crc.reset();
+					crc.update(record);
+					if ((int)crc.getValue() != checksum)
+						throw new IOException("Bad record checksum");
+					applyRecord(record, files);
+				} catch (IOException e) {
+					log.warn("Journal " + file.getName() + " ends in a bad record after " + count + " records ("
+						+ (e instanceof EOFException ? "cut short" : e.getMessage()) + "). The rest of it is ignored.");
+					damaged = true;
+					break;
+				}
+				count++;
+				good += 8 + record.length;
+			}
+		} finally {
+			in.close();
+		}
+		if (damaged) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(good);
+			} finally {
+				raf.close();
+			}
+		}
+		return count;
+	}
+
+	private static void applyRecord(byte[] record, HashMap<String, RMFile> files) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		String id = in.readUTF();
+		if (type == RECORD_REMOVE) {
+			files.remove(id);
+		} else if (type == RECORD_ADD) {
+			String name = in.readUTF();
+			String mimetype = in.readUTF();
+			long size = in.readLong();
+			int hashLength = in.readShort();
+			byte[] hash = null;
+			if (hashLength >= 0) {
+				hash = new byte[hashLength];
+				in.readFully(hash);
+			}
+			RMFile file = new RMFile(id, name, mimetype, size, hash);
+			file.setUploaded(in.readLong());
+			files.put(id, file);
+		} else
+			throw new IOException("Unknown record type " + type);
+	}
+
+	/**
+	 * Writes out pending records: everything queued while the last batch was
+	 * being written goes out in a single write and sync.
+	 */
+	private class Committer implements Runnable {
+		// Number of the segment being written, which rotate() has already
+		// counted past if a ROTATE is still pending
+		private int segmentGeneration = generation;
+
+		public void run() {
+			CRC32 crc = new CRC32();
+			while (true) {
+				List<Object> batch;
+				long last;
+				synchronized (FileJournal.this) {
+					while (pending.isEmpty()) {
+						try {
+							FileJournal.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					batch = pending;
+					pending = new ArrayList<Object>();
+					last = appended;
+				}
+
+				// Everything up to here is on disk
+				long written = last - batch.size();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				try {
+					for (int i = 0; i < batch.size(); i++) {
+						Object item = batch.get(i);
+						if (item == ROTATE) {
+							writeAndSync(bytes);
+							bytes.reset();
+							written = last - batch.size() + i + 1;
+							segment.close();
+							segment = openSegment(++segmentGeneration);
+							continue;
+						}
+						byte[] record = (byte[])item;
+						crc.reset();
+						crc.update(record);
+						out.writeInt(record.length);
+						out.writeInt((int)crc.getValue());
+						out.write(record);
+					}
+					writeAndSync(bytes);
+					written = last;
+				} catch (Throwable e) {
+					// Keep going whatever it was, or everyone would wait forever
+					log.severe("Could not save file database: " + e.getClass().toString() + " - " + e.getMessage());
+				}
+
+				synchronized (FileJournal.this) {
+					if (written < last)
+						failed.put(written + 1, last);
+					committed = last;
+					FileJournal.this.notifyAll();
+				}
+			}
+		}
+
+		// Append records to the segment and make sure they're on disk. If that
+		// fails, cut off whatever did get written, so a torn record doesn't hide
+		// the ones after it.
+		private void writeAndSync(ByteArrayOutputStream bytes) throws IOException {
+			if (bytes.size() == 0)
+				return;
+			long start = segment.size();
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+				while (buffer.hasRemaining())
+					segment.write(buffer);
+				segment.force(false);
+			} catch (IOException e) {
+				try {
+					segment.truncate(start);
+				} catch (IOException e2) {
+				}
+				throw e;
+			}
+		}
+	}
+
+}
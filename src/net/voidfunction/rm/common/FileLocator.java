@@ -41,12 +41,19 @@ public interface FileLocator {
 	/**
 	 * Return a URL that the FileServlet using this FileLocator should redirect
 	 * to instead of serving the file ourselves, or null if we should not
-	 * redirect.
+	 * redirect. Repeated requests from the same client address for the same
+	 * file should get the same URL for as long as that location stays valid.
+	 * 
+	 * exclude, if not null, is a comma-separated list of host:port locations
+	 * the client has already been turned away from (see FileServlet's load
+	 * shedding), which should not be handed out again.
 	 * 
 	 * @param fileId
 	 * @param fileName
+	 * @param clientAddr
+	 * @param exclude
 	 * @return
 	 */
-	public String locateURL(String fileId, String fileName);
+	public String locateURL(String fileId, String fileName, String clientAddr, String exclude);
 
 }
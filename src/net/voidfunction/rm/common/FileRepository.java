@@ -33,70 +33,269 @@
 package net.voidfunction.rm.common;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.codec.binary.Hex;
 
 /**
  * Stores a list of files and their data. Provides a means to access file
  * information and data on demand.
+ * 
+ * Looking files up never waits: the list is a concurrent map, and files only
+ * join it once their data is complete and in place. Changes to the list take
+ * the repository's lock, but only for as long as it takes to update the list
+ * and journal; file data is written and checked beforehand, in a staging file
+ * of its own, with no lock held.
+ * 
+ * File data is stored by content: each distinct SHA-256 hash has one blob,
+ * shared by every file ID with that hash, and only deleted once the last of
+ * them is removed. Blobs are spread over subdirectories named after the
+ * start of their hash (ab/abcd..., or ab/cd/abcd... with more levels), so
+ * that no one directory grows too large to search quickly.
  */
 public class FileRepository {
 
 	private Node node;
 	private String directory;
-	private HashMap<String, RMFile> fileObjects;
+	private ConcurrentHashMap<String, RMFile> fileObjects;
+	private HotFileCache cache;
+
+	// The IDs of the files sharing each blob of data, by hex hash. Rebuilt
+	// from the file list on load, so never saved. Guarded by this.
+	private HashMap<String, Set<String>> blobRefs = new HashMap<String, Set<String>>();
+
+	// Changes to fileObjects, as they happen, so it needn't be saved every time
+	private FileJournal journal;
+	private final Object snapshotLock = new Object();
+
+	// How often to check whether the journal is due to be compacted into a
+	// new snapshot, which it is once it holds more records than there are files
+	private static final long COMPACT_CHECK = 60000;
+	private static final int MIN_COMPACT_RECORDS = 1000;
+
+	// Files still being uploaded, which can be read as they grow
+	private ConcurrentHashMap<String, GrowingFile> publishing = new ConcurrentHashMap<String, GrowingFile>();
+
+	// Files smaller than this aren't worth keeping a compressed copy of
+	private static final long MIN_COMPRESS_SIZE = 256;
+
+	// Builds compressed copies of text-like files and piece hashes in the
+	// background, and moves blobs into place when the directory layout has
+	// changed
+	private ExecutorService compressor;
+
+	// Hex hashes of the blobs whose piece hashes are being worked out. Guarded
+	// by this.
+	private Set<String> hashingPieces = new HashSet<String>();
+
+	// How many levels of subdirectories blobs are spread over
+	private int fanout;
+	private static final int MAX_FANOUT = 3;
+
+	// Whether some blobs may still be where an earlier layout put them
+	private volatile boolean relayingOut;
+
+	// Whether to flush new file data to disk before it is moved into place
+	private boolean syncData;
+
+	// Size of the chunks published files are written in
+	private static final int PUBLISH_CHUNK = 65536;
+
+	// Ending of the files data is staged in before being moved into place
+	private static final String STAGING_SUFFIX = ".incoming";
+
+	// Length of a blob's name: a SHA-256 hash in hex
+	private static final int BLOB_NAME_LENGTH = 64;
+
+	// Added to a blob's name for its compressed copy, for the empty file
+	// marking it as not worth compressing, and for its piece hashes
+	private static final String COMPRESSED_SUFFIX = ".gz";
+	private static final String INCOMPRESSIBLE_SUFFIX = ".nogz";
+	private static final String PIECES_SUFFIX = ".pieces";
+	private static final String[] BLOB_SUFFIXES = { COMPRESSED_SUFFIX, INCOMPRESSIBLE_SUFFIX, PIECES_SUFFIX };
 
 	public FileRepository(Node node, String directory) {
 		this.node = node;
 		this.directory = directory;
+		this.compressor = Executors.newSingleThreadExecutor();
+		this.syncData = node.getConfig().getBool("files.sync", true);
+		this.fanout = Math.max(0, Math.min(MAX_FANOUT, node.getConfig().getInt("files.fanout", 1)));
 	}
 
 	/* Loading and saving file hash table */
 
 	/**
-	 * Loads the files.dat file from this FileRepository's directory. If it
-	 * exists, it should contain a HashMap of RMFiles.
+	 * Loads the list of files from this FileRepository's directory: the last
+	 * snapshot (files.dat), with the journal of changes since replayed on top.
+	 * From then on, changes are journaled, and the journal is compacted into a
+	 * new snapshot in the background as it grows.
 	 * 
 	 * @throws IOException
 	 */
-	@SuppressWarnings("unchecked")
 	public void loadFiles() throws IOException {
 		checkDirectory();
-		String fileDatName = getDataFileName();
-		try {
-			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(fileDatName)));
-			Object inObj = in.readObject();
-			fileObjects = (HashMap<String, RMFile>)inObj;
-			in.close();
-		} catch (FileNotFoundException fnfe) {
+		journal = new FileJournal(new File(directory), node.getLog());
+		HashMap<String, RMFile> loaded = journal.load();
+		if (loaded == null) {
 			// It's ok if it does not exist.
-			fileObjects = new HashMap<String, RMFile>();
-			node.getLog().info("File repository list (" + fileDatName + ") not found. Starting with empty list.");
-		} catch (ClassNotFoundException e) {
-			// Very unlikely, so we default to empty list
-			node.getLog().warn("Encountered error loading file  list (" + fileDatName + "). Starting with empty list.");
-			fileObjects = new HashMap<String, RMFile>();
+			loaded = new HashMap<String, RMFile>();
+			node.getLog().info("File repository list (" + getDataFileName() + ") not found. Starting with empty list.");
 		}
+		fileObjects = new ConcurrentHashMap<String, RMFile>(loaded);
 		node.getLog().info("File repository (" + fileObjects.size() + " files) loaded.");
+
+		// Data that was still arriving when we last stopped is no use now
+		for (File staged : new File(directory).listFiles()) {
+			if (staged.getName().endsWith(STAGING_SUFFIX) || staged.getName().endsWith(".part"))
+				staged.delete();
+		}
+
+		// Count each blob's references, moving data stored under file IDs by
+		// older versions to its blob on the way
+		int moved = 0, dropped = 0;
+		relayingOut = true;
+		synchronized (this) {
+			for (RMFile file : fileObjects.values()) {
+				addBlobRef(file);
+				File oldData = new File(getFileName(file.getId()));
+				if (oldData.exists()) {
+					getBlobFile(file.getHash()).getParentFile().mkdirs();
+					if (moveOrDiscard(oldData, getBlobFile(file.getHash())))
+						moved++;
+					else
+						dropped++;
+					moveOrDiscard(new File(getCompressedFileName(file.getId())), getCompressedBlobFile(file.getHash()));
+				}
+			}
+		}
+		if (moved + dropped > 0)
+			node.getLog().info("Moved data of " + moved + " files to content-addressed storage, dropping "
+				+ dropped + " duplicate copies.");
+
+		// Lists saved before upload times were recorded fall back to the age of the data
+		boolean backfilled = false;
+		for (RMFile file : fileObjects.values()) {
+			if (file.getUploaded() == 0) {
+				long modified = findBlob(hexHash(file), false).lastModified();
+				file.setUploaded(modified != 0 ? modified : System.currentTimeMillis());
+				backfilled = true;
+			}
+		}
+		if (backfilled || journal.getRecordCount() > 0)
+			saveFiles();
+
+		Timer compactTimer = new Timer("file-journal-compactor", true);
+		compactTimer.schedule(new TimerTask() {
+			public void run() {
+				if (journal.getRecordCount() > Math.max(MIN_COMPACT_RECORDS, getFileCount()))
+					saveFiles();
+			}
+		}, COMPACT_CHECK, COMPACT_CHECK);
+
+		// Put blobs where the layout says they should be, then catch up on any
+		// compressed copies that were never made, in the background: files can
+		// be served from wherever they are in the meantime
+		compressor.execute(new Runnable() {
+			public void run() {
+				relayBlobs();
+				for (RMFile file : fileObjects.values()) {
+					if (!getCompressedBlobFile(file.getHash()).exists()
+							&& !getIncompressibleMarker(file.getHash()).exists())
+						scheduleCompression(file);
+				}
+			}
+		});
+	}
+
+	// Move any blobs that aren't where the configured layout puts them (say,
+	// from before it was changed) into place, and delete any that no file
+	// refers to any more (say, one added just before a crash).
+	private void relayBlobs() {
+		List<File> blobs = new ArrayList<File>();
+		List<File> dirs = new ArrayList<File>();
+		listBlobs(new File(directory), 0, blobs, dirs);
+
+		int moved = 0, deleted = 0;
+		for (File blob : blobs) {
+			String hash = blob.getName().substring(0, BLOB_NAME_LENGTH);
+			String suffix = blob.getName().substring(BLOB_NAME_LENGTH);
+			File dest = new File(getBlobFile(hash, fanout).getPath() + suffix);
+			synchronized (this) {
+				if (!blobRefs.containsKey(hash)) {
+					blob.delete();
+					deleted++;
+				} else if (!blob.equals(dest)) {
+					dest.getParentFile().mkdirs();
+					if (moveOrDiscard(blob, dest))
+						moved++;
+				}
+			}
+		}
+		relayingOut = false;
+
+		// Directories left empty, deepest first. Only empty ones can be deleted.
+		Collections.reverse(dirs);
+		for (File dir : dirs) {
+			synchronized (this) {
+				dir.delete();
+			}
+		}
+		if (moved > 0 || deleted > 0)
+			node.getLog().info("Moved " + moved + " stored files into place and deleted " + deleted
+				+ " unused ones.");
+	}
+
+	// Collect the blobs (and the files kept alongside them: compressed copies,
+	// markers for data not worth compressing, piece hashes) in the given
+	// directory and the fan-out subdirectories beneath it, and the
+	// subdirectories themselves
+	private static void listBlobs(File dir, int depth, List<File> blobs, List<File> dirs) {
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			return;
+		for (File entry : entries) {
+			String name = entry.getName();
+			if (name.length() == 2 && depth < MAX_FANOUT && isHex(name) && entry.isDirectory()) {
+				dirs.add(entry);
+				listBlobs(entry, depth + 1, blobs, dirs);
+			} else {
+				for (String suffix : BLOB_SUFFIXES) {
+					if (name.endsWith(suffix)) {
+						name = name.substring(0, name.length() - suffix.length());
+						break;
+					}
+				}
+				if (name.length() == BLOB_NAME_LENGTH && isHex(name))
+					blobs.add(entry);
+			}
+		}
 	}
 
 	/**
-	 * Saves this repository's HashMap of RMFiles to files.dat in the
-	 * repository's directory.
-	 * 
-	 * @throws IOException
+	 * Saves a snapshot of this repository's list of files to files.dat, so
+	 * that the journal of changes made before it can be thrown away. This is
+	 * done in the background as the journal grows, so is rarely needed
+	 * otherwise.
 	 */
 	public void saveFiles() {
-		try {
-			String fileDatName = getFileName("files.dat");
-			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(
-				fileDatName)));
-			out.writeObject(fileObjects);
-			out.close();
-		} catch (IOException e) {
-			node.getLog().severe(
-				"Could not save file database: " + e.getClass().toString() + " - " + e.getMessage());
+		synchronized (snapshotLock) {
+			HashMap<String, RMFile> snapshot;
+			int generation;
+			synchronized (this) {
+				snapshot = new HashMap<String, RMFile>(fileObjects);
+				generation = journal.rotate();
+			}
+			try {
+				journal.writeSnapshot(snapshot, generation);
+			} catch (IOException e) {
+				node.getLog().severe(
+					"Could not save file database: " + e.getClass().toString() + " - " + e.getMessage());
+			}
 		}
 	}
 
@@ -104,48 +303,305 @@ public class FileRepository {
 
 	/**
 	 * Adds a new file to the list of files we know about, along with its data.
+	 * The data is written out and checked against the file's hash before the
+	 * file is added, so nobody sees it until it is complete. If we already
+	 * hold data with the file's hash, the stream isn't read at all.
 	 * 
 	 * @param file
 	 * @param data
 	 * @throws IOException 
 	 */
-	public synchronized void addFile(RMFile file, InputStream data) throws IOException {
-		if (!fileObjects.containsKey(file.getId())) {
+	public void addFile(RMFile file, InputStream data) throws IOException {
+		if (linkFile(file) != null) {
+			data.close();
+			return;
+		}
+		File staged = stageFileData(data, file);
+		try {
+			addFile(file, staged);
+		} finally {
+			staged.delete(); // Only still there if it couldn't be moved into place
+		}
+	}
+
+	/**
+	 * Adds a new file to the list of files we know about, along with its data,
+	 * which has already been written to a local file in the repository's
+	 * directory (see getPartialDataFile()) and checked against the file's
+	 * hash. The data file becomes the blob for its hash, or is deleted if
+	 * there already is one; returns the location of the blob.
+	 * 
+	 * @param file
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 */
+	public File addFile(RMFile file, File data) throws IOException {
+		File dest = getBlobFile(file.getHash());
+		if (syncData && !dest.exists())
+			syncFile(data); // So a crash can't leave a listed file with half its data
+		long record = 0;
+		synchronized (this) {
+			checkDirectory();
+			boolean newBlob = !blobRefs.containsKey(hexHash(file));
+			if (newBlob)
+				dest.getParentFile().mkdirs();
+			if (!newBlob)
+				data.delete(); // Already have it
+			else if (!data.renameTo(dest))
+				throw new IOException("Could not move data for file " + file.getId() + " into place");
+			if (!fileObjects.containsKey(file.getId())) {
+				fileObjects.put(file.getId(), file);
+				addBlobRef(file);
+				record = journal.add(file);
+			}
+			if (newBlob)
+				scheduleCompression(file);
+		}
+		try {
+			journal.sync(record);
+		} catch (IOException e) {
+			undoAdd(file);
+			throw e;
+		}
+		return dest;
+	}
+
+	/**
+	 * Adds a new file to the list of files we know about if we already hold
+	 * data with its hash, under another file ID, so it needn't be fetched.
+	 * Returns the location of the data, or null (adding nothing) if we don't
+	 * have it.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public File linkFile(RMFile file) throws IOException {
+		long record;
+		synchronized (this) {
+			if (!blobRefs.containsKey(hexHash(file)))
+				return null;
+			if (fileObjects.containsKey(file.getId()))
+				return findBlob(hexHash(file), false);
 			fileObjects.put(file.getId(), file);
-			saveFiles();
+			addBlobRef(file);
+			record = journal.add(file);
 		}
-		storeFileData(data, file.getId());
+		try {
+			journal.sync(record);
+		} catch (IOException e) {
+			undoAdd(file);
+			throw e;
+		}
+		return findBlob(hexHash(file), false);
+	}
+
+	// Take back a file whose addition couldn't be written to the journal, so
+	// that it isn't served or saved after the caller has been told it wasn't
+	// added. Its record may have been partly written, so a removal is
+	// journalled too, on a best-effort basis.
+	private synchronized void undoAdd(RMFile file) throws IOException {
+		if (fileObjects.get(file.getId()) != file)
+			return;
+		List<RMFile> forgotten = new ArrayList<RMFile>(1);
+		forgetFile(file.getId(), forgotten);
+		deleteForgottenData(forgotten);
 	}
 
 	/**
-	 * Removes a file from the list of files we know about.
+	 * Returns the IDs of the other files whose data is the same as that of the
+	 * file with the given ID.
 	 * 
 	 * @param id
+	 * @return
 	 */
-	public synchronized void removeFile(String id) throws IOException {
-		RMFile file = getFileById(id);
+	public synchronized List<String> getFilesWithSameData(String id) {
+		List<String> twins = new ArrayList<String>();
+		RMFile file = fileObjects.get(id);
 		if (file == null)
-			return;
+			return twins;
+		for (String otherId : blobRefs.get(hexHash(file))) {
+			if (!otherId.equals(id))
+				twins.add(otherId);
+		}
+		return twins;
+	}
+
+	/* Publishing: files readable while they are still being uploaded */
 
-		deleteFileData(id);
-		
-		fileObjects.remove(id);
-		saveFiles();
+	/**
+	 * Start publishing a file whose data is still to come. Until publish()
+	 * finishes, the file isn't in the repository, but getPublishing() gives
+	 * readers a way to follow its data as it arrives. The file's hash (and
+	 * its size, if not known in advance, shown by a size below 0) are filled
+	 * in once all the data is in. Returns false, doing nothing, if a file with
+	 * the same ID already exists.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean startPublishing(RMFile file) throws IOException {
+		File partial = getPartialDataFile(file.getId());
+		GrowingFile growing = new GrowingFile(partial);
+		growing.setFile(file);
+		synchronized (this) {
+			if (fileObjects.containsKey(file.getId()) || publishing.containsKey(file.getId()))
+				return false;
+			checkDirectory();
+			new FileOutputStream(partial).close(); // So readers have something to open
+			publishing.put(file.getId(), growing);
+		}
+		return true;
+	}
+
+	/**
+	 * Write the data for a file given to startPublishing(), hashing it on the
+	 * way. Once it is all in, the file is sealed: its hash and size are set,
+	 * and it joins the repository like any other file. If anything goes
+	 * wrong, the file is dropped and readers see the error.
+	 * 
+	 * @param file
+	 * @param data
+	 * @throws IOException
+	 */
+	public void publish(RMFile file, InputStream data) throws IOException {
+		GrowingFile growing = getPublishing(file.getId());
+		if (growing == null)
+			throw new IOException("File " + file.getId() + " is not being published");
+		File partial = getPartialDataFile(file.getId());
+		try {
+			MessageDigest sha256;
+			try {
+				sha256 = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e.getMessage());
+			}
+			OutputStream out = new FileOutputStream(partial);
+			long size = 0;
+			try {
+				byte[] buffer = new byte[PUBLISH_CHUNK];
+				int read;
+				while ((read = data.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+					sha256.update(buffer, 0, read);
+					size += read;
+					growing.appended(read);
+				}
+			} finally {
+				out.close();
+			}
+			if (file.getSize() >= 0 && size != file.getSize())
+				throw new EOFException("Upload ended after " + size + " of " + file.getSize() + " bytes");
+
+			file.setSize(size);
+			file.setHash(sha256.digest());
+			file.setUploaded(System.currentTimeMillis());
+			synchronized (growing) {
+				// Readers open the data under this lock, so none can miss the move
+				growing.finish(addFile(file, partial));
+			}
+		} catch (IOException e) {
+			growing.fail(e);
+			partial.delete();
+			throw e;
+		} finally {
+			publishing.remove(file.getId());
+		}
+	}
+
+	/**
+	 * Returns the file with the given ID if it is still being published, or
+	 * null if it isn't.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public GrowingFile getPublishing(String id) {
+		return publishing.get(id);
+	}
+
+	/**
+	 * Removes a file from the list of files we know about.
+	 * 
+	 * @param id
+	 */
+	public void removeFile(String id) throws IOException {
+		List<RMFile> forgotten = new ArrayList<RMFile>(1);
+		long record;
+		synchronized (this) {
+			record = forgetFile(id, forgotten);
+		}
+		syncRemoval(record, forgotten);
 	}
 
 	/**
 	 * Remove all files whose ids are not contained in the given list of Strings.
 	 * @param keepFiles
 	 */
-	public synchronized int removeAllExcept(List<Object> keepFiles) throws IOException {
-		int counter = 0;
-		for (String id : new ArrayList<String>(fileObjects.keySet())) {
-			if (!keepFiles.contains(id)) {
-				removeFile(id);
-				counter++;
+	public int removeAllExcept(List<Object> keepFiles) throws IOException {
+		Set<Object> keep = new HashSet<Object>(keepFiles);
+		List<RMFile> forgotten = new ArrayList<RMFile>();
+		long record = 0;
+		synchronized (this) {
+			for (String id : new ArrayList<String>(fileObjects.keySet())) {
+				if (!keep.contains(id))
+					record = forgetFile(id, forgotten);
+			}
+		}
+		// One wait for the lot
+		syncRemoval(record, forgotten);
+		return forgotten.size();
+	}
+
+	// Remove a file from the list, adding it to forgotten. Its data stays until
+	// the removal has been journalled (see syncRemoval()). Returns the number of
+	// the journal record to wait for, or 0 if there was no such file. Call with
+	// the lock held.
+	private long forgetFile(String id, List<RMFile> forgotten) {
+		RMFile file = fileObjects.remove(id);
+		if (file == null)
+			return 0;
+		removeBlobRef(file);
+		if (cache != null)
+			cache.invalidate(id);
+		forgotten.add(file);
+		return journal.remove(id);
+	}
+
+	// Wait for the removal of the forgotten files to be journalled, then delete
+	// their data. If it couldn't be, put them back (they still have their data)
+	// rather than report a failure for a removal that has taken effect. Their
+	// removal may have been partly written, so they are journalled again, on a
+	// best-effort basis.
+	private void syncRemoval(long record, List<RMFile> forgotten) throws IOException {
+		try {
+			journal.sync(record);
+		} catch (IOException e) {
+			synchronized (this) {
+				for (RMFile file : forgotten) {
+					if (fileObjects.containsKey(file.getId()) || !findBlob(hexHash(file), false).exists())
+						continue; // Added again since, or its data went with a twin
+					fileObjects.put(file.getId(), file);
+					addBlobRef(file);
+					journal.add(file);
+				}
 			}
+			throw e;
+		}
+		synchronized (this) {
+			deleteForgottenData(forgotten);
+		}
+	}
+
+	// Delete the data of forgotten files that no other file shares. Call with
+	// the lock held.
+	private void deleteForgottenData(List<RMFile> forgotten) throws IOException {
+		for (RMFile file : forgotten) {
+			if (!blobRefs.containsKey(hexHash(file)))
+				deleteBlobData(file.getHash());
 		}
-		return counter;
 	}
 	
 	/**
@@ -154,7 +610,7 @@ public class FileRepository {
 	 * @param id
 	 * @return
 	 */
-	public synchronized RMFile getFileById(String id) {
+	public RMFile getFileById(String id) {
 		return fileObjects.get(id);
 	}
 
@@ -164,7 +620,7 @@ public class FileRepository {
 	 * @param id
 	 * @return
 	 */
-	public synchronized boolean checkFile(String id) {
+	public boolean checkFile(String id) {
 		return fileObjects.containsKey(id);
 	}
 
@@ -173,7 +629,7 @@ public class FileRepository {
 	 * 
 	 * @return list of RMFiles
 	 */
-	public synchronized Collection<RMFile> getFileObjects() {
+	public Collection<RMFile> getFileObjects() {
 		return fileObjects.values();
 	}
 
@@ -182,10 +638,31 @@ public class FileRepository {
 	 * 
 	 * @return count
 	 */
-	public synchronized int getFileCount() {
+	public int getFileCount() {
 		return fileObjects.size();
 	}
 
+	/**
+	 * Attach an in-memory cache of file data to this repository. The cache is
+	 * kept consistent with the repository as files are removed.
+	 * 
+	 * @param cache
+	 */
+	public void setCache(HotFileCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Return the in-memory cache of file data attached to this repository, or
+	 * null if there is none. Deliberately not synchronized, so that cache hits
+	 * never wait on the repository.
+	 * 
+	 * @return
+	 */
+	public HotFileCache getCache() {
+		return cache;
+	}
+
 	/* Functions for manipulating file data */
 
 	/**
@@ -211,8 +688,9 @@ public class FileRepository {
 	 * @param id
 	 * @return
 	 */
-	public synchronized boolean fileDataExists(String id) {
-		return new File(getFileName(id)).canRead();
+	public boolean fileDataExists(String id) {
+		RMFile file = getFileById(id);
+		return file != null && findBlob(hexHash(file), false).canRead();
 	}
 
 	/**
@@ -223,67 +701,326 @@ public class FileRepository {
 	 * @return
 	 * @throws IOException
 	 */
-	public synchronized InputStream getFileData(String id) throws IOException {
-		if (getFileById(id) == null)
+	public InputStream getFileData(String id) throws IOException {
+		File dataFile = getFileDataFile(id);
+		if (dataFile == null)
 			return null;
-		if (!fileDataExists(id))
-			throw new IOException("Can't load file with id '" + id + "'");
-		return new FileInputStream(new File(getFileName(id)));
+		try {
+			return new FileInputStream(dataFile);
+		} catch (FileNotFoundException e) {
+			if (!checkFile(id))
+				return null; // Removed since we looked it up
+			throw e;
+		}
 	}
 
 	/**
-	 * Saves the data for a given file ID to the repository's save folder.
+	 * Returns the local File holding the data for the given file ID, or null if
+	 * the file does not exist. Lets callers hand the data to a channel or
+	 * mapped buffer directly instead of reading it through an InputStream.
 	 * 
-	 * @param data
 	 * @param id
+	 * @return
 	 * @throws IOException
 	 */
-	private void storeFileData(InputStream data, String id) throws IOException {
+	public File getFileDataFile(String id) throws IOException {
 		RMFile file = getFileById(id);
+		if (file == null)
+			return null;
+		File blob = findBlob(hexHash(file), false);
+		if (!blob.canRead()) {
+			if (!checkFile(id))
+				return null; // Removed since we looked it up
+			throw new IOException("Can't load file with id '" + id + "'");
+		}
+		return blob;
+	}
 
+	/**
+	 * Returns the local File holding a gzip-compressed copy of the data for the
+	 * given file ID, or null if there isn't one (yet).
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public File getCompressedDataFile(String id) {
+		RMFile file = getFileById(id);
 		if (file == null)
-			throw new IOException("File with id " + id + " does not exist.");
+			return null;
+		File compressed = findBlob(hexHash(file), true);
+		if (!compressed.canRead())
+			return null;
+		return compressed;
+	}
 
-		File fileObj = new File(getFileName(id));
-		try {
-			checkDirectory();
+	/**
+	 * Returns the local File that data for the given file ID should be written
+	 * to while it is still arriving, before being handed to addFile().
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public File getPartialDataFile(String id) {
+		return new File(getFileName(id) + ".part");
+	}
 
-			FileOutputStream fileOut = new FileOutputStream(getFileName(file.getId()));
-			IOUtils.copy(data, fileOut);
-			data.close();
-			fileOut.close();
+	/**
+	 * Writes a file's data to a staging file of its own in the repository's
+	 * folder and checks it against the file's hash, with no lock held. Returns
+	 * the staging file, ready for addFile().
+	 * 
+	 * @param data
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private File stageFileData(InputStream data, RMFile file) throws IOException {
+		checkDirectory();
+		File staged = File.createTempFile(file.getId() + ".", STAGING_SUFFIX, new File(directory));
+		try {
+			FileOutputStream fileOut = new FileOutputStream(staged);
+			byte[] newHash;
+			try {
+				newHash = FileUtils.copyAndHash(data, fileOut.getChannel());
+			} finally {
+				data.close();
+				fileOut.close();
+			}
 
 			// Check hash against one in the file
-			byte[] newHash = FileUtils.sha256Hash(fileObj);
 			if (!Arrays.equals(newHash, file.getHash())) {
 				throw new IOException("Hash of created file does not match");
 			}
 		} catch (IOException e) {
-			fileObj.delete(); // Attempt to clean up
+			staged.delete(); // Attempt to clean up
 			throw e;
 		}
+		return staged;
+	}
 
+	/**
+	 * Flushes a file's data to disk.
+	 * 
+	 * @param data
+	 * @throws IOException
+	 */
+	private static void syncFile(File data) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(data, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
 	}
 
 	/**
-	 * Deletes any data we have stored for the file with the given ID. Must be
-	 * called separately from removeFile().
+	 * Deletes the blob of data with the given hash, its compressed copy (or the
+	 * marker saying it has none) and its piece hashes. Only once no file
+	 * refers to it.
 	 * 
-	 * @param id
+	 * @param hash
 	 * @throws IOException
 	 */
-	private synchronized void deleteFileData(String id) throws IOException {
-		if (getFileById(id) == null)
+	private synchronized void deleteBlobData(byte[] hash) throws IOException {
+		checkDirectory();
+		String hex = Hex.encodeHexString(hash);
+		findBlob(hex, false).delete();
+		findBlob(hex, true).delete();
+		getIncompressibleMarker(hash).delete();
+		getPiecesFile(hash).delete();
+	}
+
+	// Count a file as one of the references to its blob. Call with the lock held.
+	private void addBlobRef(RMFile file) {
+		String hash = hexHash(file);
+		Set<String> refs = blobRefs.get(hash);
+		if (refs == null) {
+			refs = new HashSet<String>();
+			blobRefs.put(hash, refs);
+		}
+		refs.add(file.getId());
+	}
+
+	// Drop a file's reference to its blob. Returns true if it was the last
+	// one, so the blob can go. Call with the lock held.
+	private boolean removeBlobRef(RMFile file) {
+		String hash = hexHash(file);
+		Set<String> refs = blobRefs.get(hash);
+		if (refs == null)
+			return true;
+		refs.remove(file.getId());
+		if (!refs.isEmpty())
+			return false;
+		blobRefs.remove(hash);
+		return true;
+	}
+
+	// Move data stored by an older version or layout into place as a blob,
+	// unless the blob is there already. Returns true if it was moved.
+	private static boolean moveOrDiscard(File from, File to) {
+		if (!from.exists())
+			return false;
+		if (!to.exists())
+			return from.renameTo(to);
+		from.delete();
+		return false;
+	}
+
+	/**
+	 * Returns the SHA-256 hashes of each pieceSize-byte piece of a file's data
+	 * (the last piece may be shorter), for download manifests, or null if they
+	 * aren't ready yet. They are worked out in the background the first time
+	 * they are asked for, and kept alongside the data, so each blob is only
+	 * ever hashed once.
+	 * 
+	 * @param file
+	 * @param pieceSize
+	 * @return
+	 */
+	public byte[][] getPieceHashes(RMFile file, int pieceSize) {
+		byte[][] pieces = file.getPieceHashes();
+		if (pieces != null)
+			return pieces;
+		pieces = readPieceHashes(file, pieceSize);
+		if (pieces != null) {
+			file.setPieceHashes(pieces);
+			return pieces;
+		}
+
+		final RMFile toHash = file;
+		final int size = pieceSize;
+		synchronized (this) {
+			if (!hashingPieces.add(hexHash(file)))
+				return null; // Already on its way
+		}
+		compressor.execute(new Runnable() {
+			public void run() {
+				try {
+					hashPieces(toHash, size);
+				} finally {
+					synchronized (FileRepository.this) {
+						hashingPieces.remove(hexHash(toHash));
+					}
+				}
+			}
+		});
+		return null;
+	}
+
+	// Work out the piece hashes of a file's data, and keep them next to it.
+	// Written under a temporary name first so that a half-written list is
+	// never read.
+	private void hashPieces(RMFile file, int pieceSize) {
+		File piecesFile = getPiecesFile(file.getHash());
+		File temp = new File(piecesFile.getPath() + ".tmp");
+		try {
+			if (readPieceHashes(file, pieceSize) != null)
+				return; // Another file with the same data got there first
+			File data = getFileDataFile(file.getId());
+			if (data == null)
+				return; // Gone
+			long start = System.currentTimeMillis();
+			byte[][] pieces = FileUtils.sha256Pieces(data, pieceSize);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(pieceSize);
+				for (byte[] piece : pieces)
+					out.write(piece);
+			} finally {
+				out.close();
+			}
+			synchronized (this) {
+				// The data may have been removed while we were hashing
+				if (!blobRefs.containsKey(hexHash(file)) || !temp.renameTo(piecesFile))
+					temp.delete();
+			}
+			file.setPieceHashes(pieces);
+			node.getLog().info("Hashed " + pieces.length + " pieces of " + file.getId() + " (" + file.getName()
+				+ ") in " + (System.currentTimeMillis() - start) + " ms.");
+		} catch (IOException e) {
+			temp.delete();
+			node.getLog().warn("Could not hash pieces of file " + file.getId() + ": " + e.getMessage());
+		}
+	}
+
+	// Read the piece hashes kept alongside a file's data, or return null if
+	// there are none (or they were worked out for another piece size).
+	private byte[][] readPieceHashes(RMFile file, int pieceSize) {
+		File piecesFile = getPiecesFile(file.getHash());
+		int count = (int)((file.getSize() + pieceSize - 1) / pieceSize);
+		if (piecesFile.length() != 4 + 32L * count)
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(piecesFile)));
+			try {
+				if (in.readInt() != pieceSize)
+					return null;
+				byte[][] pieces = new byte[count][32];
+				for (byte[] piece : pieces)
+					in.readFully(piece);
+				return pieces;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Queue a text-like file to have a compressed copy of its data built in
+	 * the background, so that it can be served to clients that accept gzip
+	 * without compressing on every request.
+	 * 
+	 * @param file
+	 */
+	private void scheduleCompression(final RMFile file) {
+		if (file.getSize() < MIN_COMPRESS_SIZE || !FileUtils.isCompressible(file.getName(), file.getMimetype()))
 			return;
+		compressor.execute(new Runnable() {
+			public void run() {
+				compressFileData(file);
+			}
+		});
+	}
 
-		checkDirectory();
-		File fileObj = new File(getFileName(id));
-		fileObj.delete();
+	// Build the compressed copy of a file's data. Written under a temporary
+	// name first so that a half-written copy is never served.
+	private void compressFileData(RMFile file) {
+		String id = file.getId();
+		File source = findBlob(hexHash(file), false);
+		File compressed = getCompressedBlobFile(file.getHash());
+		File marker = getIncompressibleMarker(file.getHash());
+		File temp = new File(compressed.getPath() + ".tmp");
+		try {
+			if (!checkFile(id) || !source.canRead() || compressed.exists() || marker.exists())
+				return; // Gone, or another file with the same data got there first
+			FileUtils.gzip(source, temp);
+
+			// Not worth serving if it barely saves anything. Remember that, so
+			// it isn't compressed all over again every time we start.
+			if (temp.length() > source.length() * 9 / 10) {
+				temp.delete();
+				synchronized (this) {
+					if (blobRefs.containsKey(hexHash(file)))
+						marker.createNewFile();
+				}
+				return;
+			}
+			synchronized (this) {
+				// The data may have been removed while we were compressing
+				if (!blobRefs.containsKey(hexHash(file)) || !temp.renameTo(compressed))
+					temp.delete();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			node.getLog().warn("Could not compress file " + id + ": " + e.getMessage());
+		}
 	}
 
 	/**
-	 * Returns the name of the file the repository uses to store serialized
-	 * file metadata objects.
+	 * Returns the name of the file the repository uses to store snapshots of
+	 * serialized file metadata objects.
 	 * @return
 	 */
 	public String getDataFileName() {
@@ -295,4 +1032,79 @@ public class FileRepository {
 		return directory + "/" + id;
 	}
 
+	// Util function for getting the local filename of a file's compressed copy,
+	// as stored by older versions
+	private String getCompressedFileName(String id) {
+		return getFileName(id) + ".gz";
+	}
+
+	// Util function for getting the local file holding the data with a given hash
+	private File getBlobFile(byte[] hash) {
+		return getBlobFile(Hex.encodeHexString(hash), fanout);
+	}
+
+	// Util function for getting the local file holding a compressed copy of the
+	// data with a given hash
+	private File getCompressedBlobFile(byte[] hash) {
+		return getCompressedBlobFile(Hex.encodeHexString(hash), fanout);
+	}
+
+	// Util function for getting where a layout with the given number of levels
+	// of subdirectories puts the data with a given (hex) hash
+	private File getBlobFile(String hash, int levels) {
+		StringBuilder path = new StringBuilder(directory);
+		for (int i = 0; i < levels; i++)
+			path.append('/').append(hash, i * 2, i * 2 + 2);
+		return new File(path.append('/').append(hash).toString());
+	}
+
+	private File getCompressedBlobFile(String hash, int levels) {
+		return new File(getBlobFile(hash, levels).getPath() + COMPRESSED_SUFFIX);
+	}
+
+	// Util function for getting the empty file that marks the data with a
+	// given hash as not worth keeping a compressed copy of
+	private File getIncompressibleMarker(byte[] hash) {
+		return new File(getBlobFile(hash).getPath() + INCOMPRESSIBLE_SUFFIX);
+	}
+
+	// Util function for getting the file holding the piece hashes of the data
+	// with a given hash
+	private File getPiecesFile(byte[] hash) {
+		return new File(getBlobFile(hash).getPath() + PIECES_SUFFIX);
+	}
+
+	// Find the data (or compressed copy) with a given (hex) hash, which is
+	// where the layout puts it. One that hasn't been moved there yet is moved
+	// now, so that it can't be moved out from under whoever asked.
+	private File findBlob(String hash, boolean compressed) {
+		File blob = compressed ? getCompressedBlobFile(hash, fanout) : getBlobFile(hash, fanout);
+		if (!relayingOut || blob.exists())
+			return blob;
+		synchronized (this) {
+			if (blob.exists() || !blobRefs.containsKey(hash))
+				return blob;
+			for (int levels = 0; levels <= MAX_FANOUT; levels++) {
+				File old = compressed ? getCompressedBlobFile(hash, levels) : getBlobFile(hash, levels);
+				if (levels != fanout && old.exists()) {
+					blob.getParentFile().mkdirs();
+					return old.renameTo(blob) ? blob : old;
+				}
+			}
+		}
+		return blob;
+	}
+
+	private static String hexHash(RMFile file) {
+		return Hex.encodeHexString(file.getHash());
+	}
+
+	private static boolean isHex(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.digit(name.charAt(i), 16) < 0)
+				return false;
+		}
+		return true;
+	}
+
 }
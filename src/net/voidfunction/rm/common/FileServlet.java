@@ -32,14 +32,26 @@
 
 package net.voidfunction.rm.common;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.List;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.*;
 
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
 
 /**
  * Servlet whose responsibility it is to act as a download server for all files in the
@@ -50,9 +62,28 @@ public class FileServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 8461560600264423624L;
 
+	// How long to wait on a file being fetched from elsewhere before giving up
+	private static final long PENDING_TIMEOUT = 30000;
+
 	private Node node;
 	private FileLocator locator;
 	private FileDownloadListener dlListener;
+	private boolean zeroCopy;
+	private AsyncFileSender asyncSender;
+	private BandwidthShaper shaper;
+	private String cacheControl;
+	private HTTPDateClock dateClock, expiresClock;
+	private boolean logRequests;
+	private AdmissionController admission;
+	private Runnable releaser;
+	private FileLocator overflowLocator;
+	private int retryAfter;
+	private FileMissHandler missHandler;
+	private ClientRateLimiter clientLimiter;
+	private KnownWorkers knownWorkers;
+	private long redirectMinSize;
+	private URLSigner signer;
+	private FileLocator renewLocator;
 
 	/**
 	 * Creates a new FileServlet. locator and dlListener may be null if their
@@ -65,87 +96,619 @@ public class FileServlet extends HttpServlet {
 		this.node = node;
 		this.locator = locator;
 		this.dlListener = dlListener;
+		this.zeroCopy = node.getConfig().getBool("http.zerocopy", true);
+		int maxAge = node.getConfig().getInt("http.maxage", 31536000);
+		this.cacheControl = "public, max-age=" + maxAge + ", immutable";
+		this.dateClock = new HTTPDateClock(0);
+		this.expiresClock = new HTTPDateClock(maxAge);
+		this.logRequests = node.getConfig().getBool("http.logrequests", true);
+		this.redirectMinSize = node.getConfig().getInt("http.redirect.minsize", 0) * 1024L;
+		int rateLimit = node.getConfig().getInt("http.ratelimit", 0);
+		int connectionLimit = node.getConfig().getInt("http.ratelimit.connection", 0);
+		if (rateLimit > 0 || connectionLimit > 0)
+			this.shaper = new BandwidthShaper(rateLimit * 1024L, connectionLimit * 1024L);
+		if (node.getConfig().getBool("http.async", true)) {
+			try {
+				this.asyncSender = new AsyncFileSender(node, node.getConfig().getInt("http.async.threads", 4), shaper);
+			} catch (IOException e) {
+				node.getLog().warn("Could not start asynchronous file sender: " + e.getMessage());
+			}
+		}
+		if (node.getConfig().getBool("http.admission", false)) {
+			this.admission = new AdmissionController(node.getConfig().getInt("http.admission.maxrequests", 0),
+				node.getConfig().getInt("http.admission.maxqueued", 0) * 1024L * 1024L,
+				node.getConfig().getInt("http.admission.maxlatency", 0), asyncSender);
+			this.releaser = new Runnable() {
+				public void run() {
+					admission.release();
+				}
+			};
+			this.retryAfter = node.getConfig().getInt("http.admission.retryafter", 5);
+		}
+	}
+
+	/**
+	 * Set the FileLocator used to send clients elsewhere when this node is too
+	 * busy to serve them. Without one, they are told to try again later.
+	 * @param overflowLocator
+	 */
+	public void setOverflowLocator(FileLocator overflowLocator) {
+		this.overflowLocator = overflowLocator;
+	}
+
+	/**
+	 * Set the ClientRateLimiter used to turn away clients making too many
+	 * requests, before any work is done on their behalf. Workers fetching
+	 * copies of files, as told apart by knownWorkers (if not null), aren't
+	 * limited.
+	 * @param clientLimiter
+	 * @param knownWorkers
+	 */
+	public void setClientLimiter(ClientRateLimiter clientLimiter, KnownWorkers knownWorkers) {
+		this.clientLimiter = clientLimiter;
+		this.knownWorkers = knownWorkers;
+	}
+
+	/**
+	 * Only serve requests whose URLs have been signed with the given
+	 * URLSigner. Requests whose signature has expired, or that have none, are
+	 * sent to the URL given by renewLocator (if any) to get a new one; those
+	 * with a bad signature are refused.
+	 * @param signer
+	 * @param renewLocator
+	 */
+	public void setURLSigner(URLSigner signer, FileLocator renewLocator) {
+		this.signer = signer;
+		this.renewLocator = renewLocator;
+	}
+
+	/**
+	 * Set the FileMissHandler asked to fetch files this node doesn't have,
+	 * instead of answering 404.
+	 * @param missHandler
+	 */
+	public void setMissHandler(FileMissHandler missHandler) {
+		this.missHandler = missHandler;
+	}
+
+	/**
+	 * Get this servlet's admission controller, or null if load shedding is
+	 * turned off.
+	 * @return
+	 */
+	public AdmissionController getAdmissionController() {
+		return admission;
+	}
+
+	/**
+	 * Get the BandwidthShaper that limits how fast this servlet sends file
+	 * data, or null if it isn't rate limited.
+	 * @return
+	 */
+	public BandwidthShaper getBandwidthShaper() {
+		return shaper;
 	}
 
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		request.getSession().setMaxInactiveInterval(120);
-		response.setHeader("Date", HTTPUtils.getServerTime(0));
+		serve(request, response, false);
+	}
+
+	protected void doHead(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		serve(request, response, true);
+	}
+
+	/**
+	 * Handle a GET or HEAD request for a file. HEAD requests get exactly the
+	 * headers a GET would, but the file data is never opened.
+	 * @param request
+	 * @param response
+	 * @param headOnly
+	 * @throws IOException
+	 */
+	private void serve(HttpServletRequest request, HttpServletResponse response, boolean headOnly) throws IOException {
+		response.setHeader("Date", dateClock.get());
 
-		// Parse the filename and the ID out of the URL
-		String[] urlParts = request.getRequestURI().substring(1).split("/");
-		if (urlParts.length < 2) {
+		// Find the ID (and the filename after it) in the URL: /files/<id>/<name>
+		String uri = request.getRequestURI();
+		int idStart = uri.indexOf('/', 1) + 1;
+		if (idStart == 0 || idStart == uri.length()) {
 			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 			return;
 		}
-		String fileID = urlParts[1];
-		String fileName = "";
-		if (urlParts.length > 2)
-			fileName = urlParts[2];
+		int idEnd = uri.indexOf('/', idStart);
+		if (idEnd == -1)
+			idEnd = uri.length();
+		String fileID = uri.substring(idStart, idEnd);
+		boolean workerDL = isWorkerDownload(uri, idEnd);
 
-		String logOut = "File " + fileID + " (" + fileName + ") requested by " + request.getRemoteHost() + " [Result: ";
+		// Workers fetching copies can need many files at once, so aren't limited
+		boolean fromWorker = workerDL && knownWorkers != null && knownWorkers.isWorkerAddress(request.getRemoteAddr());
+		if (clientLimiter != null && !fromWorker && !clientLimiter.check(request, response, 1))
+			return;
+		if (signer != null && !checkSignature(request, response, fileID, uri, idEnd))
+			return;
 		
-		RMFile file = node.getFileRepository().getFileById(fileID);
+		// Cache hits are served without touching the repository at all. Cached
+		// data goes out in one piece, so can't be rate limited.
+		HotFileCache cache = (shaper == null ? node.getFileRepository().getCache() : null);
+		HotFileCache.CachedFile cached = null;
+		if (cache != null)
+			cached = cache.get(fileID);
+
+		RMFile file;
+		if (cached != null)
+			file = cached.getFile();
+		else
+			file = node.getFileRepository().getFileById(fileID);
+
+		// Files still being uploaded can be followed as they arrive (but aren't
+		// ready to be replicated)
+		if (file == null && !workerDL) {
+			GrowingFile publishing = node.getFileRepository().getPublishing(fileID);
+			if (publishing != null) {
+				servePending(request, response, publishing, uri, idEnd, fileID, headOnly);
+				return;
+			}
+			file = node.getFileRepository().getFileById(fileID); // May have just been sealed
+		}
+
+		// Workers fetching a copy must never set off a fetch of their own
+		if (file == null && missHandler != null && !workerDL) {
+			GrowingFile pending = missHandler.fetchMissing(fileID);
+			if (pending != null) {
+				servePending(request, response, pending, uri, idEnd, fileID, headOnly);
+				return;
+			}
+			file = node.getFileRepository().getFileById(fileID); // May have just arrived
+		}
 		if (file == null) {
 			// File  with given ID not found - no redirect for you.
-			logOut += "Not found]";
-			node.getLog().info(logOut);
+			logRequest(request, uri, idEnd, fileID, "Not found");
 
 			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-			response.getWriter().write("<b>404 Not Found</b><br/>Could not find a file with ID " + fileID);
+			if (!headOnly)
+				response.getWriter().write("<b>404 Not Found</b><br/>Could not find a file with ID " + fileID);
 			return;
 		}
 		
-		boolean workerDL = (fileName.equals("Worker-Download"));
-		if (workerDL)
-			logOut += " (Worker Download) ";
-		
 		// Let the download listener know, if any, but don't count worker downloads
-		if (dlListener != null && !workerDL)
+		// or requests that only want the headers
+		if (dlListener != null && !workerDL && !headOnly)
 			dlListener.fileDownloaded(file);
 
+		// Locations the client has already been turned away from, if any
+		String exclude = null;
+		if (request.getQueryString() != null)
+			exclude = request.getParameter("exclude");
+
+		// Small files are quicker to send than a redirect to a new connection
 		String redirURL = null;
-		if (locator != null)
-			redirURL = (String)request.getSession().getAttribute("fileURL-" + fileID);
-		if (redirURL == null && locator != null)
-			redirURL = locator.locateURL(fileID, fileName);
+		if (locator != null && file.getSize() >= redirectMinSize)
+			redirURL = locator.locateURL(fileID, fileNameOf(uri, idEnd), request.getRemoteAddr(), exclude);
 		if (redirURL != null) {
-			node.getLog().debug("Found redirect URL: " + redirURL);
-			request.getSession().setAttribute("fileURL-" + fileID, redirURL);
 			// Redirect to the new URL
-			logOut += "Redirect]";
-			node.getLog().info(logOut);
+			if (logRequests)
+				node.getLog().debug("Found redirect URL: " + redirURL);
+			logRequest(request, uri, idEnd, fileID, workerDL ? " (Worker Download) Redirect" : "Redirect");
 
 			response.setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
 			response.setHeader("Location", redirURL);
 		} else {
 			// We have to try to find it ourselves
 
-			logOut += "Found locally]";
-			node.getLog().info(logOut);
+			logRequest(request, uri, idEnd, fileID, workerDL ? " (Worker Download) Found locally" : "Found locally");
+
+			// Text-like files may have a precompressed copy we can send instead.
+			// Ranges always refer to the uncompressed data.
+			File gzipFile = null;
+			if (FileUtils.isCompressible(file.getName(), file.getMimetype())) {
+				response.setHeader("Vary", "Accept-Encoding");
+				if (request.getHeader("Range") == null
+					&& HTTPUtils.acceptsEncoding(request.getHeader("Accept-Encoding"), "gzip"))
+					gzipFile = node.getFileRepository().getCompressedDataFile(fileID);
+			}
 
-			// Caching magic - we can safely assume the file won't change
-			String etag = Hex.encodeHexString(file.getHash());
+			// Caching magic - the data under a file ID never changes, so caches
+			// may keep it as long as they like without revalidating.
+			FileHeaders headers = file.getHeaders();
+			String etag = (gzipFile != null ? headers.getGzipETag() : headers.getETag());
+			long lastModified = file.getUploaded();
 			response.setHeader("ETag", etag);
-			String ifModifiedSince = request.getHeader("If-Modified-Since");
-			String ifNoneMatch = request.getHeader("If-None-Match");
-			boolean etagMatch = (ifNoneMatch != null) && (ifNoneMatch.equals(etag));
-			
-			if (ifModifiedSince != null || etagMatch) {
+			response.setHeader("Last-Modified", headers.getLastModified());
+			response.setHeader("Expires", expiresClock.get());
+			response.setHeader("Cache-Control", cacheControl);
+			if (workerDL) {
+				// Lets a worker that is pulling a file it hasn't been told about
+				// (see FileMissHandler) learn its name
+				response.setHeader("X-RM-Name", URLEncoder.encode(file.getName(), "UTF-8"));
+			}
+
+			if (notModified(request.getHeader("If-None-Match"), request.getHeader("If-Modified-Since"), etag,
+				headers.getLastModified(), lastModified)) {
 				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-				response.setHeader("Last-Modified", ifModifiedSince);
-			} else {
+				return;
+			}
+
+			// Turn the download away rather than pile more work on an overloaded node
+			if (!headOnly && admission != null && !admission.tryAdmit(request)) {
+				shed(request, response, fileID, uri, idEnd, exclude);
+				return;
+			}
+
+			// Once admitted, the download counts against our capacity until it is
+			// over, which for the asynchronous sender is after we return
+			boolean handedOff = false;
+			try {
 				// Send the HTTP response and file data
-				response.setStatus(HttpServletResponse.SC_OK);
-				response.setHeader("Expires", HTTPUtils.getServerTime(3600));
-				response.setHeader("Cache-Control", "max-age=3600");
-				response.setContentType(file.getMimetype());
-				response.setHeader("Content-Length", String.valueOf(file.getSize()));
-				
-				// Stream the file data to the output stream using Apache IOUtils
-				InputStream fileIn = node.getFileRepository().getFileData(fileID);
-				IOUtils.copyLarge(fileIn, response.getOutputStream());
+				response.setHeader("Accept-Ranges", "bytes");
+
+				if (gzipFile != null) {
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.setContentType(file.getMimetype());
+					response.setHeader("Content-Encoding", "gzip");
+					response.setHeader("Content-Length", String.valueOf(gzipFile.length()));
+					if (!headOnly)
+						handedOff = sendFileData(gzipFile, null, request, response, 0, gzipFile.length());
+					return;
+				}
+
+				List<ByteRange> ranges = null;
+				if (ifRangeMatches(request.getHeader("If-Range"), etag, lastModified))
+					ranges = ByteRange.parse(request.getHeader("Range"), file.getSize());
+
+				if (ranges != null && ranges.isEmpty()) {
+					response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					response.setHeader("Content-Range", "bytes */" + file.getSize());
+					return;
+				}
+
+				File dataFile = null;
+				if (!headOnly) {
+					if (cached == null && cache != null)
+						cached = cache.offer(file, node.getFileRepository());
+					if (cached == null) {
+						dataFile = node.getFileRepository().getFileDataFile(fileID);
+						if (dataFile == null) {
+							// Removed since we looked it up
+							response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+							return;
+						}
+					}
+				}
+
+				if (ranges == null) {
+					// Whole file
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.setContentType(file.getMimetype());
+					response.setHeader("Content-Length", headers.getContentLength());
+					if (!headOnly)
+						handedOff = sendFileData(dataFile, cached, request, response, 0, file.getSize());
+				} else if (ranges.size() == 1) {
+					ByteRange range = ranges.get(0);
+					response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					response.setContentType(file.getMimetype());
+					response.setHeader("Content-Range", range.toContentRange(file.getSize()));
+					response.setHeader("Content-Length", String.valueOf(range.getLength()));
+					if (!headOnly)
+						handedOff = sendFileData(dataFile, cached, request, response, range.getStart(),
+							range.getLength());
+				} else {
+					response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					sendMultipartRanges(file, cached, response, ranges, headOnly);
+				}
+			} finally {
+				if (!headOnly && admission != null && !handedOff)
+					admission.release();
 			}
 		}
 	}
 
+	/**
+	 * Write the given range of a file's data to the response. Cached files are sent
+	 * straight from their off-heap buffer. Otherwise, when zero-copy serving is enabled
+	 * and Jetty's own output is available, the range is memory-mapped and handed to
+	 * Jetty as a direct buffer, so the bytes go from the page cache to the socket
+	 * without being copied through the heap; Jetty's selector then drains the buffer
+	 * without holding on to a request thread. Failing that (or if the file can't be
+	 * mapped) we fall back to a plain stream copy, which is handed off to the
+	 * asynchronous sender when async serving is enabled. When sending is rate
+	 * limited, only the stream copy is used, since it's the only path that
+	 * lets us pace the data. Returns whether the response was handed off to the
+	 * asynchronous sender, which releases it from admission control when done.
+	 * @param dataFile
+	 * @param cached
+	 * @param request
+	 * @param response
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean sendFileData(File dataFile, HotFileCache.CachedFile cached, HttpServletRequest request,
+		HttpServletResponse response, long offset, long length) throws IOException {
+		ServletOutputStream out = response.getOutputStream();
+
+		if (cached != null) {
+			ByteBuffer data = sliceOf(cached, offset, length);
+			if (out instanceof AbstractHttpConnection.Output)
+				((AbstractHttpConnection.Output)out).sendContent(new DirectNIOBuffer(data, true));
+			else
+				Channels.newChannel(out).write(data);
+			return false;
+		}
+
+		// A single mapping can't be larger than Integer.MAX_VALUE bytes
+		if (shaper == null && zeroCopy && length <= Integer.MAX_VALUE && out instanceof AbstractHttpConnection.Output) {
+			DirectNIOBuffer mapped = null;
+			try {
+				mapped = mapFileRange(dataFile, offset, length);
+			} catch (IOException e) {
+				node.getLog().debug("Could not map file " + dataFile.getName() + ", falling back to stream copy: "
+					+ e.getMessage());
+			}
+			if (mapped != null) {
+				((AbstractHttpConnection.Output)out).sendContent(mapped);
+				return false;
+			}
+		}
+
+		InputStream fileIn = new FileInputStream(dataFile);
+		if (asyncSender != null && length > AsyncFileSender.MIN_ASYNC_LENGTH && request.isAsyncSupported()) {
+			try {
+				asyncSender.send(request.startAsync(), fileIn, offset, length, releaser);
+			} catch (IOException e) {
+				fileIn.close();
+				throw e;
+			}
+			return true;
+		}
+		try {
+			copyRange(fileIn, out, offset, length);
+		} finally {
+			fileIn.close();
+		}
+		return false;
+	}
+
+	/**
+	 * Write several ranges of a file to the response as a multipart/byteranges
+	 * body. Parts are always streamed, since Jetty only accepts a single direct
+	 * buffer per response.
+	 * @param file
+	 * @param response
+	 * @param ranges
+	 * @param headOnly
+	 * @throws IOException
+	 */
+	private void sendMultipartRanges(RMFile file, HotFileCache.CachedFile cached, HttpServletResponse response,
+		List<ByteRange> ranges, boolean headOnly) throws IOException {
+		String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(file.getSize());
+
+		// Build the part headers first so we know the total length up front
+		String[] partHeaders = new String[ranges.size()];
+		long length = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			ByteRange range = ranges.get(i);
+			partHeaders[i] = "\r\n--" + boundary + "\r\nContent-Type: " + file.getMimetype()
+				+ "\r\nContent-Range: " + range.toContentRange(file.getSize()) + "\r\n\r\n";
+			length += partHeaders[i].length() + range.getLength();
+		}
+		String trailer = "\r\n--" + boundary + "--\r\n";
+		length += trailer.length();
+
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		response.setHeader("Content-Length", String.valueOf(length));
+		if (headOnly)
+			return;
+
+		ServletOutputStream out = response.getOutputStream();
+		for (int i = 0; i < ranges.size(); i++) {
+			ByteRange range = ranges.get(i);
+			out.write(partHeaders[i].getBytes("ISO-8859-1"));
+			if (cached != null) {
+				Channels.newChannel(out).write(sliceOf(cached, range.getStart(), range.getLength()));
+				continue;
+			}
+			InputStream fileIn = node.getFileRepository().getFileData(file.getId());
+			if (fileIn == null) {
+				// Removed while being sent. Drop the connection, so the client can
+				// see the response is incomplete.
+				AbstractHttpConnection.getCurrentConnection().getEndPoint().close();
+				throw new IOException("File " + file.getId() + " was removed while being sent");
+			}
+			try {
+				copyRange(fileIn, out, range.getStart(), range.getLength());
+			} finally {
+				fileIn.close();
+			}
+		}
+		out.write(trailer.getBytes("ISO-8859-1"));
+	}
+
+	// Copy part of a stream to the client, keeping to the rate limits if any.
+	private void copyRange(InputStream in, OutputStream out, long offset, long length) throws IOException {
+		if (shaper != null) {
+			TokenBucket connection = shaper.connectionBucket(AbstractHttpConnection.getCurrentConnection());
+			shaper.copyRange(in, out, offset, length, connection);
+		} else {
+			FileUtils.copyRange(in, out, offset, length);
+		}
+	}
+
+	// Get a view of part of a cached file's data.
+	private static ByteBuffer sliceOf(HotFileCache.CachedFile cached, long offset, long length) {
+		ByteBuffer data = cached.getData();
+		data.position((int)offset);
+		data.limit((int)(offset + length));
+		return data;
+	}
+
+	// Map part of a file read-only into a buffer Jetty can write directly.
+	private static DirectNIOBuffer mapFileRange(File dataFile, long offset, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+			return new DirectNIOBuffer(buffer, true);
+		} finally {
+			raf.close(); // The mapping stays valid after the channel is closed
+		}
+	}
+
+	// Serve a file that is still being fetched from elsewhere or uploaded: wait
+	// to learn what it is, then send its data as it arrives. Ranges and conditional
+	// requests are ignored, since the whole file is coming anyway.
+	private void servePending(HttpServletRequest request, HttpServletResponse response, GrowingFile pending,
+		String uri, int idEnd, String fileID, boolean headOnly) throws IOException {
+		RMFile file = pending.awaitFile(PENDING_TIMEOUT);
+		if (file == null) {
+			if (pending.getFailure() instanceof FileNotFoundException) {
+				logRequest(request, uri, idEnd, fileID, "Not found");
+				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			} else {
+				logRequest(request, uri, idEnd, fileID, "Fetch failed");
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				response.setHeader("Retry-After", String.valueOf(retryAfter > 0 ? retryAfter : 5));
+			}
+			return;
+		}
+
+		if (!headOnly && admission != null && !admission.tryAdmit(request)) {
+			shed(request, response, fileID, uri, idEnd, null);
+			return;
+		}
+		try {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType(file.getMimetype());
+			if (file.getHash() != null) {
+				logRequest(request, uri, idEnd, fileID, "Fetching");
+				FileHeaders headers = file.getHeaders();
+				response.setHeader("Content-Length", headers.getContentLength());
+				response.setHeader("ETag", headers.getETag());
+				response.setHeader("Last-Modified", headers.getLastModified());
+				response.setHeader("Expires", expiresClock.get());
+				response.setHeader("Cache-Control", cacheControl);
+			} else {
+				// Still being uploaded: no hash to tag it with yet, maybe not even a
+				// size, and if the upload fails the response will be cut short
+				logRequest(request, uri, idEnd, fileID, "Publishing");
+				if (file.getSize() >= 0)
+					response.setHeader("Content-Length", String.valueOf(file.getSize()));
+				response.setHeader("Cache-Control", "no-store");
+			}
+			if (!headOnly) {
+				try {
+					pending.copyTo(response.getOutputStream(), PENDING_TIMEOUT);
+				} catch (IOException e) {
+					// Drop the connection, or a client without a length to go by would
+					// see the end of the response as the end of the file
+					AbstractHttpConnection.getCurrentConnection().getEndPoint().close();
+					throw e;
+				}
+			}
+		} finally {
+			if (!headOnly && admission != null)
+				admission.release();
+		}
+	}
+
+	// Check that the request's URL was signed for this file. If not, send the
+	// client to get a new URL, or refuse it if the signature is wrong.
+	private boolean checkSignature(HttpServletRequest request, HttpServletResponse response, String fileID,
+		String uri, int idEnd) {
+		URLSigner.Check check = URLSigner.Check.MISSING;
+		if (request.getQueryString() != null)
+			check = signer.check(fileID, request.getParameter("expires"), request.getParameter("sig"));
+		if (check == URLSigner.Check.VALID)
+			return true;
+
+		response.setHeader("Cache-Control", "no-store");
+		String renewURL = null;
+		if (check != URLSigner.Check.INVALID && renewLocator != null)
+			renewURL = renewLocator.locateURL(fileID, fileNameOf(uri, idEnd), request.getRemoteAddr(), null);
+		if (renewURL != null) {
+			logRequest(request, uri, idEnd, fileID, "Signature " + check.name().toLowerCase() + ", redirected");
+			response.setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
+			response.setHeader("Location", renewURL);
+		} else {
+			logRequest(request, uri, idEnd, fileID, "Signature " + check.name().toLowerCase());
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+		}
+		return false;
+	}
+
+	// Turn away a download because we're overloaded: send the client somewhere
+	// else if we can, otherwise tell it to come back later. Either way the
+	// response mustn't be cached.
+	private void shed(HttpServletRequest request, HttpServletResponse response, String fileID, String uri,
+		int idEnd, String exclude) {
+		response.setHeader("ETag", null);
+		response.setHeader("Last-Modified", null);
+		response.setHeader("Expires", null);
+		response.setHeader("Cache-Control", "no-store");
+
+		String redirURL = null;
+		if (overflowLocator != null)
+			redirURL = overflowLocator.locateURL(fileID, fileNameOf(uri, idEnd), request.getRemoteAddr(), exclude);
+		if (redirURL != null) {
+			logRequest(request, uri, idEnd, fileID, "Overloaded, redirected");
+			response.setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
+			response.setHeader("Location", redirURL);
+		} else {
+			logRequest(request, uri, idEnd, fileID, "Overloaded");
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setHeader("Retry-After", String.valueOf(retryAfter));
+		}
+	}
+
+	// Evaluate the request's cache validators against what we're about to
+	// send. If-None-Match takes precedence over If-Modified-Since.
+	static boolean notModified(String ifNoneMatch, String ifModifiedSince, String etag, String lastModifiedHeader,
+		long lastModified) {
+		if (ifNoneMatch != null)
+			return HTTPUtils.matchesETag(ifNoneMatch, etag, true);
+		if (ifModifiedSince == null)
+			return false;
+		// Clients nearly always send back exactly what we gave them
+		if (ifModifiedSince.equals(lastModifiedHeader))
+			return true;
+		long since = HTTPUtils.parseDate(ifModifiedSince);
+		return since != -1 && lastModified / 1000 <= since / 1000;
+	}
+
+	// Log the outcome of a request, if we're logging requests at all.
+	private void logRequest(HttpServletRequest request, String uri, int idEnd, String fileID, String result) {
+		if (!logRequests)
+			return;
+		node.getLog().info("File " + fileID + " (" + fileNameOf(uri, idEnd) + ") requested by "
+			+ request.getRemoteHost() + " [Result: " + result + "]");
+	}
+
+	// The filename part of a request URI, which follows the ID (ending at idEnd).
+	static String fileNameOf(String uri, int idEnd) {
+		if (idEnd >= uri.length())
+			return "";
+		int nameEnd = uri.indexOf('/', idEnd + 1);
+		return uri.substring(idEnd + 1, nameEnd == -1 ? uri.length() : nameEnd);
+	}
+
+	// Whether the filename part of a request URI marks a worker fetching a copy.
+	static boolean isWorkerDownload(String uri, int idEnd) {
+		int nameStart = idEnd + 1;
+		int nameLength = "Worker-Download".length();
+		return uri.startsWith("Worker-Download", nameStart)
+			&& (nameStart + nameLength == uri.length() || uri.charAt(nameStart + nameLength) == '/');
+	}
+
+	// Whether a Range request should be honoured given its If-Range value,
+	// which may be a strong entity tag or a date. Anything that doesn't match
+	// means the client gets the whole file.
+	static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+		if (ifRange == null)
+			return true;
+		long date = HTTPUtils.parseDate(ifRange);
+		if (date != -1)
+			return date / 1000 == lastModified / 1000;
+		return HTTPUtils.matchesETag(ifRange, etag, false);
+	}
+
 }
@@ -35,14 +35,25 @@ package net.voidfunction.rm.common;
 import java.io.*;
 import java.net.FileNameMap;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * Provides a couple of utility functions relating to files, including hashing
- * and mime type determination.
+ * Provides a couple of utility functions relating to files, including hashing,
+ * compression and mime type determination.
  */
 public class FileUtils {
 
+	// Text-like types that are worth storing a compressed copy of
+	private static final String[] COMPRESSIBLE_TYPES = { "text/", "application/javascript",
+		"application/x-javascript", "application/json", "application/xml", "application/xhtml+xml",
+		"application/rss+xml", "application/atom+xml", "image/svg+xml" };
+	private static final String[] COMPRESSIBLE_EXTENSIONS = { ".js", ".css", ".json", ".svg", ".html", ".htm",
+		".txt", ".xml", ".csv" };
+
 	/**
 	 * Calculate the SHA-256 hash for a given file efficiently.
 	 * 
@@ -73,6 +84,157 @@ public class FileUtils {
 		return sha256.digest();
 	}
 
+	/**
+	 * Copy a stream to a file channel, calculating the SHA-256 hash of the data
+	 * on its way through, so that it needn't be read back to be checked.
+	 * 
+	 * @param in
+	 * @param out
+	 * @return The hash of the data copied
+	 * @throws IOException
+	 */
+	public static byte[] copyAndHash(InputStream in, FileChannel out) throws IOException {
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not available");
+		}
+		byte[] buffer = new byte[65536];
+		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			sha256.update(buffer, 0, read);
+			wrapped.clear().limit(read);
+			while (wrapped.hasRemaining())
+				out.write(wrapped);
+		}
+		return sha256.digest();
+	}
+
+	/**
+	 * Calculate the SHA-256 hash of each pieceSize-byte piece of a file (the
+	 * last piece may be shorter), so that parts of a download can be checked
+	 * separately.
+	 * 
+	 * @param file
+	 * @param pieceSize
+	 * @return Array of piece hashes, in file order
+	 * @throws IOException
+	 */
+	public static byte[][] sha256Pieces(File file, int pieceSize) throws IOException {
+		MessageDigest sha256 = null;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// This should not happen, ever
+			return new byte[0][];
+		}
+		int pieces = (int)((file.length() + pieceSize - 1) / pieceSize);
+		byte[][] hashes = new byte[pieces][];
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			for (int i = 0; i < pieces; i++) {
+				long remaining = Math.min(pieceSize, file.length() - (long)i * pieceSize);
+				while (remaining > 0) {
+					int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+					if (read == -1)
+						throw new EOFException("File data ended before its last piece");
+					sha256.update(buffer, 0, read);
+					remaining -= read;
+				}
+				hashes[i] = sha256.digest();
+			}
+		} finally {
+			in.close();
+		}
+		return hashes;
+	}
+
+	/**
+	 * Copy length bytes, starting at the given offset, from an input stream to
+	 * an output stream. Fails if the input ends before all bytes are copied.
+	 * 
+	 * @param in
+	 * @param out
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public static void copyRange(InputStream in, OutputStream out, long offset, long length) throws IOException {
+		while (offset > 0) {
+			long skipped = in.skip(offset);
+			if (skipped <= 0)
+				throw new EOFException("Could not skip to offset in file data");
+			offset -= skipped;
+		}
+
+		byte[] buffer = new byte[8192];
+		while (length > 0) {
+			int read = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+			if (read == -1)
+				throw new EOFException("File data ended before end of range");
+			out.write(buffer, 0, read);
+			length -= read;
+		}
+	}
+
+	/**
+	 * Write a gzip-compressed copy of a file, using the best compression
+	 * available since this is only done once per file.
+	 * 
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void gzip(File in, File out) throws IOException {
+		InputStream fileIn = new FileInputStream(in);
+		try {
+			GZIPOutputStream gzOut = new GZIPOutputStream(new FileOutputStream(out), 8192) {
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = fileIn.read(buffer)) != -1)
+					gzOut.write(buffer, 0, read);
+			} finally {
+				gzOut.close();
+			}
+		} finally {
+			fileIn.close();
+		}
+	}
+
+	/**
+	 * Returns whether a file with the given name and MIME type is likely to be
+	 * text that compresses well.
+	 * 
+	 * @param filename
+	 * @param mimetype
+	 * @return
+	 */
+	public static boolean isCompressible(String filename, String mimetype) {
+		if (mimetype != null) {
+			String type = mimetype.toLowerCase();
+			for (String compressible : COMPRESSIBLE_TYPES) {
+				if (type.startsWith(compressible))
+					return true;
+			}
+		}
+		if (filename != null) {
+			String name = filename.toLowerCase();
+			for (String extension : COMPRESSIBLE_EXTENSIONS) {
+				if (name.endsWith(extension))
+					return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Get a MIME type for a given filename.
 	 * 
@@ -0,0 +1,190 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.io.*;
+
+/**
+ * A file whose data is still being written (e.g. while it is fetched from
+ * another node, or still being uploaded), which any number of readers can
+ * follow as it grows. The writer announces the file's details once it knows
+ * them, then each chunk it writes, and finally whether it succeeded.
+ */
+public class GrowingFile {
+
+	private File data;
+	private RMFile file;
+	private long length;
+	private boolean complete;
+	private IOException failure;
+
+	/**
+	 * Creates a new GrowingFile whose data is being written to the given
+	 * local file.
+	 * @param data
+	 */
+	public GrowingFile(File data) {
+		this.data = data;
+	}
+
+	/* Writer side */
+
+	/**
+	 * Announce the details of the file being written. Readers waiting in
+	 * awaitFile() are let through.
+	 * @param file
+	 */
+	public synchronized void setFile(RMFile file) {
+		this.file = file;
+		notifyAll();
+	}
+
+	/**
+	 * Announce that more data has been written (and flushed).
+	 * @param bytes
+	 */
+	public synchronized void appended(long bytes) {
+		length += bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Announce that all the data has been written, and where it now lives if
+	 * it has been moved.
+	 * @param finalData
+	 */
+	public synchronized void finish(File finalData) {
+		data = finalData;
+		complete = true;
+		notifyAll();
+	}
+
+	/**
+	 * Announce that writing the file failed. Readers will see the given
+	 * exception.
+	 * @param cause
+	 */
+	public synchronized void fail(IOException cause) {
+		failure = cause;
+		notifyAll();
+	}
+
+	/* Reader side */
+
+	/**
+	 * Wait for the details of the file to be known. Returns null if writing
+	 * failed or nothing was heard within the timeout (in milliseconds).
+	 * @param timeout
+	 * @return
+	 * @throws InterruptedIOException
+	 */
+	public synchronized RMFile awaitFile(long timeout) throws InterruptedIOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (file == null && failure == null) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return null;
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		return (failure == null ? file : null);
+	}
+
+	/**
+	 * Get the reason writing failed, or null if it hasn't.
+	 * @return
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Copy the whole of the file's data to the given stream, waiting for more
+	 * to be written as needed, until the writer finishes. Throws if writing
+	 * fails, or stalls for longer than the timeout (in milliseconds).
+	 * awaitFile() must have succeeded first.
+	 * @param out
+	 * @param timeout
+	 * @throws IOException
+	 */
+	public void copyTo(OutputStream out, long timeout) throws IOException {
+		InputStream in;
+		synchronized (this) {
+			in = new FileInputStream(data); // Opened under the lock, so it can't move underneath us
+		}
+		try {
+			byte[] buffer = new byte[8192];
+			long pos = 0;
+			while (true) {
+				long available = awaitLength(pos, timeout) - pos;
+				if (available <= 0)
+					break; // Finished, and we've sent it all
+				while (available > 0) {
+					int read = in.read(buffer, 0, (int)Math.min(buffer.length, available));
+					if (read == -1)
+						throw new EOFException("File data ended early");
+					out.write(buffer, 0, read);
+					pos += read;
+					available -= read;
+				}
+				// Let the client see each piece as it arrives
+				out.flush();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// Wait until there is data beyond pos, or the file is finished, and return
+	// how much there is.
+	private synchronized long awaitLength(long pos, long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (length <= pos && !complete) {
+			if (failure != null)
+				throw failure;
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				throw new InterruptedIOException("Timed out waiting for file data");
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,245 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * Command-line load generator for comparing HTTP engines (e.g. a worker's
+ * http.engine=jetty against http.engine=nio). Several connections request the
+ * same URL over and over with keep-alive, optionally pipelining a few requests
+ * at a time, and the throughput and latency seen are printed at the end:
+ * 
+ * java net.voidfunction.rm.common.HTTPBenchmark <url> [connections] [seconds] [pipeline]
+ * 
+ * The first second is a warm-up and isn't counted. Any response other than 200
+ * or 206 counts as an error.
+ */
+public class HTTPBenchmark {
+
+	private static final long WARMUP = 1000;
+
+	private String host;
+	private int port;
+	private byte[] request;
+	private int pipeline;
+	private long start, warmEnd, end;
+
+	// Totals, added to by each connection when it finishes
+	private long requests, bytes, errors;
+	private long[] latencies = new long[0];
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: HTTPBenchmark <url> [connections] [seconds] [pipeline]");
+			System.exit(1);
+		}
+		int connections = (args.length > 1 ? Integer.parseInt(args[1]) : 16);
+		int seconds = (args.length > 2 ? Integer.parseInt(args[2]) : 10);
+		int pipeline = (args.length > 3 ? Integer.parseInt(args[3]) : 1);
+		new HTTPBenchmark(new URL(args[0]), pipeline).run(connections, seconds);
+	}
+
+	/**
+	 * Creates a benchmark of GET requests for the given URL, sent pipeline at a
+	 * time on each connection.
+	 * @param url
+	 * @param pipeline
+	 */
+	public HTTPBenchmark(URL url, int pipeline) {
+		this.host = url.getHost();
+		this.port = (url.getPort() == -1 ? 80 : url.getPort());
+		String path = (url.getFile().length() == 0 ? "/" : url.getFile());
+		this.request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n\r\n").getBytes();
+		this.pipeline = Math.max(1, pipeline);
+	}
+
+	/**
+	 * Run the benchmark on the given number of connections for the given
+	 * number of seconds, then print the results.
+	 * @param connections
+	 * @param seconds
+	 * @throws InterruptedException
+	 */
+	public void run(int connections, int seconds) throws InterruptedException {
+		start = System.currentTimeMillis();
+		warmEnd = start + WARMUP;
+		end = warmEnd + seconds * 1000L;
+
+		Thread[] threads = new Thread[connections];
+		for (int i = 0; i < connections; i++) {
+			threads[i] = new Thread(new Client());
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		double elapsed = seconds;
+		Arrays.sort(latencies);
+		System.out.println(connections + " connections, " + seconds + "s, pipeline " + pipeline + ": " + host + ":"
+			+ port);
+		System.out.println(String.format("Requests:   %d (%.0f/s), %d errors", requests, requests / elapsed, errors));
+		System.out.println(String.format("Throughput: %.1f MB/s", bytes / elapsed / (1024 * 1024)));
+		System.out.println(String.format("Latency:    p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+			percentile(0.5), percentile(0.9), percentile(0.99), percentile(1)));
+	}
+
+	// The given percentile of the request latencies, in milliseconds
+	private double percentile(double p) {
+		if (latencies.length == 0)
+			return 0;
+		int index = (int)Math.ceil(p * latencies.length) - 1;
+		return latencies[Math.max(0, index)] / 1e6;
+	}
+
+	// Add one connection's results to the totals
+	private synchronized void addResults(long requests, long bytes, long errors, long[] latencies, int count) {
+		this.requests += requests;
+		this.bytes += bytes;
+		this.errors += errors;
+		long[] all = Arrays.copyOf(this.latencies, this.latencies.length + count);
+		System.arraycopy(latencies, 0, all, this.latencies.length, count);
+		this.latencies = all;
+	}
+
+	/**
+	 * One connection, sending requests until the time is up. It reconnects if
+	 * the server closes the connection.
+	 */
+	private class Client implements Runnable {
+		private long requests, bytes, errors;
+		private long[] latencies = new long[1024];
+		private int count;
+
+		public void run() {
+			byte[] batch = new byte[request.length * pipeline];
+			for (int i = 0; i < pipeline; i++)
+				System.arraycopy(request, 0, batch, i * request.length, request.length);
+			byte[] skip = new byte[65536];
+
+			while (System.currentTimeMillis() < end) {
+				Socket socket = null;
+				try {
+					socket = new Socket(host, port);
+					socket.setTcpNoDelay(true);
+					OutputStream out = socket.getOutputStream();
+					InputStream in = new BufferedInputStream(socket.getInputStream(), 65536);
+					boolean open = true;
+					while (open && System.currentTimeMillis() < end) {
+						long sent = System.nanoTime();
+						out.write(batch);
+						out.flush();
+						for (int i = 0; i < pipeline; i++) {
+							open = readResponse(in, skip, sent);
+							if (!open)
+								break;
+						}
+					}
+				} catch (IOException e) {
+					errors++;
+				} finally {
+					if (socket != null) {
+						try {
+							socket.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}
+			addResults(requests, bytes, errors, latencies, count);
+		}
+
+		// Read one response and note how long it took. Returns whether the
+		// connection may be used again.
+		private boolean readResponse(InputStream in, byte[] skip, long sent) throws IOException {
+			String statusLine = readLine(in);
+			if (statusLine == null)
+				throw new IOException("Connection closed");
+			String[] parts = statusLine.split(" ");
+			int status = (parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+			long length = 0;
+			boolean keepAlive = true;
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon == -1)
+					continue;
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length"))
+					length = Long.parseLong(value);
+				else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close"))
+					keepAlive = false;
+			}
+			long left = length;
+			while (left > 0) {
+				int read = in.read(skip, 0, (int)Math.min(skip.length, left));
+				if (read == -1)
+					throw new IOException("Connection closed");
+				left -= read;
+			}
+
+			// Only count what happened after the warm-up
+			if (System.currentTimeMillis() >= warmEnd && System.currentTimeMillis() < end) {
+				if (status != 200 && status != 206)
+					errors++;
+				requests++;
+				bytes += length;
+				if (count == latencies.length)
+					latencies = Arrays.copyOf(latencies, count * 2);
+				latencies[count++] = System.nanoTime() - sent;
+			}
+			return keepAlive;
+		}
+
+		// Read a line of the response header, without its line ending
+		private String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				if (c != '\r')
+					line.append((char)c);
+			}
+			if (c == -1 && line.length() == 0)
+				return null;
+			return line.toString();
+		}
+	}
+
+}
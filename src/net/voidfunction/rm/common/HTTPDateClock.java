@@ -0,0 +1,82 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+/**
+ * Supplies the current time (plus a fixed offset) formatted as an HTTP date.
+ * HTTP dates only have one-second resolution, so the formatted value is kept
+ * and reused until the second changes, rather than formatting a new date for
+ * every response.
+ */
+public class HTTPDateClock {
+
+	private final long offset;
+	private volatile Tick current;
+
+	/**
+	 * Creates a clock for dates the given number of seconds from now (e.g. 0
+	 * for the Date header, or a cache lifetime for Expires).
+	 * @param offset
+	 */
+	public HTTPDateClock(long offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * Get the formatted date for the current second.
+	 * @return
+	 */
+	public String get() {
+		long second = System.currentTimeMillis() / 1000;
+		Tick tick = current;
+		if (tick == null || tick.second != second) {
+			// Several threads may do this at once around the turn of a second,
+			// which is harmless
+			tick = new Tick(second, HTTPUtils.formatDate((second + offset) * 1000));
+			current = tick;
+		}
+		return tick.value;
+	}
+
+	// One second's formatted value
+	private static class Tick {
+		private final long second;
+		private final String value;
+
+		private Tick(long second, String value) {
+			this.second = second;
+			this.value = value;
+		}
+	}
+
+}
@@ -32,16 +32,30 @@
 
 package net.voidfunction.rm.common;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Set;
 import java.util.TimeZone;
 
+import javax.servlet.http.HttpServletRequest;
+
 /**
- * Utility functions for HTTP servers - currently, providing server time
+ * Utility functions for HTTP servers - providing server time and parsing
+ * request headers
  */
 public class HTTPUtils {
+
+	// From RFC 6585; HttpServletResponse has no constant for it
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
 	private static SimpleDateFormat dateFormat;
 	static {
 		dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
@@ -56,8 +70,184 @@ public class HTTPUtils {
 	 */
 	public static String getServerTime(long offset) {
 		Calendar calendar = Calendar.getInstance();
-		Date outDate = new Date(calendar.getTime().getTime() + (offset * 1000));
-		return dateFormat.format(outDate);
+		return formatDate(calendar.getTime().getTime() + (offset * 1000));
+	}
+
+	/**
+	 * Format a timestamp (in milliseconds since the epoch) as an HTTP date.
+	 * @param time
+	 * @return
+	 */
+	public static String formatDate(long time) {
+		// SimpleDateFormat isn't thread-safe
+		synchronized (dateFormat) {
+			return dateFormat.format(new Date(time));
+		}
+	}
+
+	/**
+	 * Parse an HTTP date (e.g. from If-Modified-Since) into milliseconds since
+	 * the epoch. Returns -1 if the value is missing or can't be parsed.
+	 * @param value
+	 * @return
+	 */
+	public static long parseDate(String value) {
+		if (value == null)
+			return -1;
+		synchronized (dateFormat) {
+			try {
+				return dateFormat.parse(value.trim()).getTime();
+			} catch (ParseException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether an If-None-Match or If-Range header value matches the
+	 * given (quoted) entity tag. The header may hold a comma-separated list of
+	 * tags, or "*". With weak comparison, W/ tags match their strong
+	 * counterparts; with strong comparison they never match.
+	 * @param header
+	 * @param etag
+	 * @param weak
+	 * @return
+	 */
+	public static boolean matchesETag(String header, String etag, boolean weak) {
+		if (header == null)
+			return false;
+		// Compare against the tag without its quotes. This is on the path of
+		// every conditional request, so work on indexes instead of substrings.
+		int opaqueStart = 0, opaqueLength = etag.length();
+		if (isQuoted(etag, 0, etag.length())) {
+			opaqueStart = 1;
+			opaqueLength -= 2;
+		}
+		int pos = 0;
+		while (pos < header.length()) {
+			int end = header.indexOf(',', pos);
+			if (end == -1)
+				end = header.length();
+			int start = pos;
+			pos = end + 1;
+
+			while (start < end && header.charAt(start) <= ' ')
+				start++;
+			while (end > start && header.charAt(end - 1) <= ' ')
+				end--;
+			if (end - start == 1 && header.charAt(start) == '*') {
+				if (weak)
+					return true;
+				continue;
+			}
+			if (header.startsWith("W/", start)) {
+				if (!weak)
+					continue;
+				start += 2;
+			}
+			// Unquoted tags are accepted for clients that kept our old, unquoted ETags
+			if (isQuoted(header, start, end)) {
+				start++;
+				end--;
+			}
+			if (end - start == opaqueLength && header.regionMatches(start, etag, opaqueStart, opaqueLength))
+				return true;
+		}
+		return false;
+	}
+
+	// Whether the given part of a string is surrounded by double quotes.
+	private static boolean isQuoted(String s, int start, int end) {
+		return end - start >= 2 && s.charAt(start) == '"' && s.charAt(end - 1) == '"';
+	}
+
+	/**
+	 * Returns whether the given Accept-Encoding header value allows a response
+	 * in the given content coding (e.g. "gzip").
+	 * @param header
+	 * @param encoding
+	 * @return
+	 */
+	public static boolean acceptsEncoding(String header, String encoding) {
+		if (header == null)
+			return false;
+		boolean accepted = false;
+		for (String item : header.split(",")) {
+			String[] params = item.split(";");
+			String coding = params[0].trim();
+			double q = 1.0;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						q = Double.parseDouble(param.substring(2).trim());
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			// An explicit entry for the coding wins over the wildcard
+			if (coding.equalsIgnoreCase(encoding) || coding.equalsIgnoreCase("x-" + encoding))
+				return q > 0;
+			if (coding.equals("*"))
+				accepted = q > 0;
+		}
+		return accepted;
+	}
+
+	/**
+	 * Percent-encode a string (e.g. a file name) for use as one segment of a
+	 * URL path.
+	 * @param segment
+	 * @return
+	 */
+	public static String encodePathSegment(String segment) {
+		try {
+			return URLEncoder.encode(segment, "UTF-8").replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			// Every JVM has UTF-8
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read a list of file IDs from a request, given either as "id" parameters
+	 * or as a plain text body, separated by whitespace or commas. Duplicates
+	 * are dropped. Stops reading once there are more than max, so the caller
+	 * can tell the list was too long.
+	 * @param request
+	 * @param max
+	 * @return
+	 * @throws IOException
+	 */
+	public static Set<String> readIdList(HttpServletRequest request, int max) throws IOException {
+		Set<String> ids = new LinkedHashSet<String>();
+		String[] params = request.getParameterValues("id");
+		if (params != null)
+			for (String param : params)
+				splitList(param, ids);
+		String contentType = request.getContentType();
+		if (contentType == null || !contentType.startsWith("application/x-www-form-urlencoded")) {
+			BufferedReader reader = request.getReader();
+			String line;
+			while ((line = reader.readLine()) != null && ids.size() <= max)
+				splitList(line, ids);
+		}
+		return ids;
+	}
+
+	// Add the items in a whitespace- or comma-separated list to the set
+	private static void splitList(String list, Set<String> items) {
+		int start = -1;
+		for (int i = 0; i <= list.length(); i++) {
+			char c = i < list.length() ? list.charAt(i) : ',';
+			if (c == ',' || Character.isWhitespace(c)) {
+				if (start != -1)
+					items.add(list.substring(start, i));
+				start = -1;
+			} else if (start == -1)
+				start = i;
+		}
 	}
 
 }
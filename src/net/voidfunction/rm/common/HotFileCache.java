@@ -0,0 +1,351 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+
+package net.voidfunction.rm.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Size-bounded cache of small, popular file bodies held in direct (off-heap)
+ * ByteBuffers, keyed by file ID. Admission and eviction are frequency-aware
+ * (TinyLFU): every lookup is counted in a small count-min sketch, and a new file
+ * only gets into a full cache if it has been requested more often than the
+ * entries it would push out. One-off scans therefore can't flush out the files
+ * that are actually hot.
+ * 
+ * Lookups take no lock, so they can be made from every request thread at once;
+ * only admitting and evicting entries is serialized.
+ */
+public class HotFileCache {
+
+	private final long capacity;
+	private final long maxFileSize;
+	private long used; // Guarded by this
+
+	private ConcurrentHashMap<String, CachedFile> entries;
+	private FrequencySketch sketch;
+
+	// Statistics. Evictions and rejections are guarded by this.
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	private long evictions, rejections;
+
+	/**
+	 * Creates a new cache holding at most capacity bytes of file data, and
+	 * never caching files larger than maxFileSize bytes.
+	 * @param capacity
+	 * @param maxFileSize
+	 */
+	public HotFileCache(long capacity, long maxFileSize) {
+		this.capacity = capacity;
+		this.maxFileSize = Math.min(maxFileSize, capacity);
+		entries = new ConcurrentHashMap<String, CachedFile>(64, 0.75f, 16);
+
+		// Size the sketch for a cache full of fairly small files
+		sketch = new FrequencySketch((int)Math.min(1 << 20, Math.max(1024, capacity / 4096)));
+	}
+
+	/**
+	 * Look up a file in the cache, counting the access towards its popularity.
+	 * Returns null on a miss.
+	 * @param id
+	 * @return
+	 */
+	public CachedFile get(String id) {
+		sketch.increment(id);
+		CachedFile cached = entries.get(id);
+		if (cached == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+			cached.lastUsed = System.nanoTime();
+		}
+		return cached;
+	}
+
+	/**
+	 * Offer a file that just missed the cache. If it is small enough and popular
+	 * enough to be admitted, its data is loaded from the repository into an
+	 * off-heap buffer and the new entry is returned. Otherwise returns null, and
+	 * the caller should serve the file from disk as usual.
+	 * @param file
+	 * @param fileRep
+	 * @return
+	 */
+	public CachedFile offer(RMFile file, FileRepository fileRep) {
+		if (file.getSize() > maxFileSize)
+			return null;
+		CachedFile existing = entries.get(file.getId());
+		if (existing != null)
+			return existing;
+		synchronized (this) {
+			if (findVictims(file) == null) {
+				rejections++;
+				return null;
+			}
+		}
+
+		// Load the data without holding the cache lock
+		ByteBuffer data;
+		try {
+			data = load(file, fileRep);
+		} catch (IOException e) {
+			return null;
+		}
+		if (data == null)
+			return null;
+
+		synchronized (this) {
+			existing = entries.get(file.getId());
+			if (existing != null)
+				return existing; // Someone else beat us to it
+
+			// Things may have moved while we were loading, so check again
+			List<String> victims = findVictims(file);
+			if (victims == null) {
+				rejections++;
+				return null;
+			}
+			for (String victim : victims) {
+				used -= entries.remove(victim).getFile().getSize();
+				evictions++;
+			}
+			CachedFile cached = new CachedFile(file, data);
+			entries.put(file.getId(), cached);
+			used += file.getSize();
+			return cached;
+		}
+	}
+
+	/**
+	 * Drop the given file from the cache, if present.
+	 * @param id
+	 */
+	public synchronized void invalidate(String id) {
+		CachedFile removed = entries.remove(id);
+		if (removed != null)
+			used -= removed.getFile().getSize();
+	}
+
+	/**
+	 * Return a short human-readable summary of the cache's size and counters.
+	 * @return
+	 */
+	public synchronized String getStats() {
+		long hits = this.hits.get(), misses = this.misses.get();
+		long lookups = hits + misses;
+		return "Cache: " + entries.size() + " files, " + used + "/" + capacity + " bytes. Hits: " + hits
+			+ ", misses: " + misses + " (hit rate " + (lookups == 0 ? 0 : hits * 100 / lookups) + "%), evictions: "
+			+ evictions + ", rejected: " + rejections;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/* Private methods */
+
+	// Work out which entries would have to go to make room for the given file,
+	// least recently used first. Returns null if the file shouldn't be admitted
+	// because something at least as popular would be evicted for it. Call with
+	// the lock held.
+	private List<String> findVictims(RMFile file) {
+		List<String> victims = new ArrayList<String>();
+		long needed = used + file.getSize() - capacity;
+		if (needed <= 0)
+			return victims;
+
+		List<CachedFile> byAge = new ArrayList<CachedFile>(entries.values());
+		Collections.sort(byAge, LEAST_RECENTLY_USED);
+		int candidateFreq = sketch.frequency(file.getId());
+		for (CachedFile entry : byAge) {
+			String id = entry.getFile().getId();
+			if (sketch.frequency(id) >= candidateFreq)
+				return null;
+			victims.add(id);
+			needed -= entry.getFile().getSize();
+			if (needed <= 0)
+				return victims;
+		}
+		return null;
+	}
+
+	private static final Comparator<CachedFile> LEAST_RECENTLY_USED = new Comparator<CachedFile>() {
+		public int compare(CachedFile a, CachedFile b) {
+			long diff = a.lastUsed - b.lastUsed; // nanoTime values may wrap, so compare the difference
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	};
+
+	// Read a file's data into a new direct buffer.
+	private static ByteBuffer load(RMFile file, FileRepository fileRep) throws IOException {
+		File dataFile = fileRep.getFileDataFile(file.getId());
+		if (dataFile == null)
+			return null;
+
+		ByteBuffer data = ByteBuffer.allocateDirect((int)file.getSize());
+		RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			while (data.hasRemaining()) {
+				if (channel.read(data, data.position()) == -1)
+					throw new IOException("File data shorter than expected");
+			}
+		} finally {
+			raf.close();
+		}
+		data.flip();
+		return data;
+	}
+
+	/**
+	 * A cached file's metadata along with its data.
+	 */
+	public static class CachedFile {
+		private RMFile file;
+		private ByteBuffer data;
+		private volatile long lastUsed;
+
+		private CachedFile(RMFile file, ByteBuffer data) {
+			this.file = file;
+			this.data = data.asReadOnlyBuffer();
+			this.lastUsed = System.nanoTime();
+		}
+
+		/**
+		 * Return the metadata of the cached file.
+		 * @return
+		 */
+		public RMFile getFile() {
+			return file;
+		}
+
+		/**
+		 * Return a new read-only view of the cached data, positioned at the
+		 * start of the file. Each caller gets its own position and limit.
+		 * @return
+		 */
+		public ByteBuffer getData() {
+			return data.duplicate();
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters used to estimate how often each file
+	 * has been requested recently. All counters are halved periodically so that
+	 * old popularity fades out. Sixteen counters are packed into each long and
+	 * updated with compare-and-set, so counting takes no lock.
+	 */
+	private static class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int[] SEEDS = { 0x97cb3127, 0x4e67c6a7, 0x5bd1e995, 0x1b873593 };
+
+		private AtomicLongArray[] table;
+		private int mask;
+		private AtomicInteger additions = new AtomicInteger();
+		private int resetAt;
+
+		public FrequencySketch(int width) {
+			int size = Math.max(16, Integer.highestOneBit(width - 1) << 1);
+			table = new AtomicLongArray[DEPTH];
+			for (int i = 0; i < DEPTH; i++)
+				table[i] = new AtomicLongArray(size / 16);
+			mask = size - 1;
+			resetAt = size * 10;
+		}
+
+		public void increment(String key) {
+			int hash = key.hashCode();
+			for (int i = 0; i < DEPTH; i++) {
+				int index = indexOf(hash, i);
+				int shift = (index & 15) << 2;
+				AtomicLongArray row = table[i];
+				while (true) {
+					long word = row.get(index >>> 4);
+					if (((word >>> shift) & 15) == 15 || row.compareAndSet(index >>> 4, word, word + (1L << shift)))
+						break;
+				}
+			}
+			if (additions.incrementAndGet() == resetAt)
+				age();
+		}
+
+		public int frequency(String key) {
+			int hash = key.hashCode();
+			int min = 15;
+			for (int i = 0; i < DEPTH; i++) {
+				int index = indexOf(hash, i);
+				min = Math.min(min, (int)((table[i].get(index >>> 4) >>> ((index & 15) << 2)) & 15));
+			}
+			return min;
+		}
+
+		private int indexOf(int hash, int row) {
+			int h = hash * SEEDS[row];
+			h ^= h >>> 16;
+			return h & mask;
+		}
+
+		// Only the thread that reaches resetAt ages the counters. Counts made
+		// while it does so may be halved or not; the estimate is rough anyway.
+		private void age() {
+			for (AtomicLongArray row : table) {
+				for (int i = 0; i < row.length(); i++) {
+					while (true) {
+						long word = row.get(i);
+						if (row.compareAndSet(i, word, (word >>> 1) & 0x7777777777777777L))
+							break;
+					}
+				}
+			}
+			additions.addAndGet(-resetAt / 2);
+		}
+	}
+
+}
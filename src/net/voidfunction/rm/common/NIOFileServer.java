@@ -0,0 +1,918 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A small HTTP server that does nothing but serve the node's files at
+ * /files/<id>/<name>, as a lighter alternative to FileServlet running in Jetty.
+ * It runs a few selector loops (one per core by default), each of which looks
+ * after its connections from start to finish, so a request costs no thread
+ * hand-offs and very little garbage. File data goes from the page cache to the
+ * socket with FileChannel.transferTo, and cached files from their off-heap
+ * buffer.
+ * 
+ * Only what clients of a worker need is understood: GET and HEAD, keep-alive and
+ * pipelined requests, conditional requests, byte ranges and precompressed copies.
+ * Nothing may hold up a loop, so files this node doesn't have are never fetched
+ * for the client (it is sent to the miss locator, if any, instead), and downloads
+ * can't be paced, so bandwidth limits need FileServlet.
+ */
+public class NIOFileServer {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	// Longest request header we accept
+	private static final int MAX_HEADER_SIZE = 8192;
+
+	// Most bytes sent on one connection before the others get a turn
+	private static final long MAX_WRITE_PER_TURN = 1024 * 1024;
+
+	private Node node;
+	private int port;
+	private int acceptQueue, idleTimeout, sendBuffer, receiveBuffer;
+	private String cacheControl;
+	private HTTPDateClock dateClock, expiresClock;
+	private boolean logRequests;
+	private AdmissionController admission;
+	private int retryAfter;
+	private FileLocator overflowLocator;
+	private FileLocator missLocator;
+	private URLSigner signer;
+	private FileLocator renewLocator;
+
+	private Loop[] loops;
+	private int nextLoop;
+
+	/**
+	 * Creates a new NIOFileServer that will run on the given TCP port. The
+	 * number of selector loops is set with http.engine.loops; the accept queue,
+	 * socket buffer and idle timeout settings are the same as RMHTTPServer's.
+	 * @param node
+	 * @param port
+	 */
+	public NIOFileServer(Node node, int port) {
+		RMConfig config = node.getConfig();
+		this.node = node;
+		this.port = port;
+		this.acceptQueue = config.getInt("http.acceptqueue", 256);
+		this.idleTimeout = config.getInt("http.idletimeout", 60000);
+		this.sendBuffer = config.getInt("http.sndbuf", 512) * 1024;
+		this.receiveBuffer = config.getInt("http.rcvbuf", 0) * 1024;
+		int maxAge = config.getInt("http.maxage", 31536000);
+		this.cacheControl = "public, max-age=" + maxAge + ", immutable";
+		this.dateClock = new HTTPDateClock(0);
+		this.expiresClock = new HTTPDateClock(maxAge);
+		this.logRequests = config.getBool("http.logrequests", true);
+		if (config.getBool("http.admission", false)) {
+			// No thread pool or asynchronous sender to back up here, so only the
+			// number of downloads is limited
+			this.admission = new AdmissionController(config.getInt("http.admission.maxrequests", 0), 0, 0, null);
+			this.retryAfter = config.getInt("http.admission.retryafter", 5);
+		}
+		int loopCount = config.getInt("http.engine.loops", Runtime.getRuntime().availableProcessors());
+		this.loops = new Loop[Math.max(1, loopCount)];
+	}
+
+	/**
+	 * Set the FileLocator used to send clients elsewhere when this node is too
+	 * busy to serve them. Without one, they are told to try again later.
+	 * @param overflowLocator
+	 */
+	public void setOverflowLocator(FileLocator overflowLocator) {
+		this.overflowLocator = overflowLocator;
+	}
+
+	/**
+	 * Set the FileLocator used to send clients elsewhere for files this node
+	 * doesn't have, instead of answering 404.
+	 * @param missLocator
+	 */
+	public void setMissLocator(FileLocator missLocator) {
+		this.missLocator = missLocator;
+	}
+
+	/**
+	 * Only serve requests whose URLs have been signed with the given
+	 * URLSigner, as with FileServlet.setURLSigner().
+	 * @param signer
+	 * @param renewLocator
+	 */
+	public void setURLSigner(URLSigner signer, FileLocator renewLocator) {
+		this.signer = signer;
+		this.renewLocator = renewLocator;
+	}
+
+	/**
+	 * Get this server's admission controller, or null if load shedding is
+	 * turned off.
+	 * @return
+	 */
+	public AdmissionController getAdmissionController() {
+		return admission;
+	}
+
+	/**
+	 * Start this server.
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(port), acceptQueue);
+		server.configureBlocking(false);
+
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new Loop();
+		// The first loop also accepts connections, and deals them out to the others
+		server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		for (int i = 0; i < loops.length; i++)
+			new Thread(loops[i], "nio-http-" + port + "-" + i).start();
+	}
+
+	/**
+	 * Work out the response to a request and queue it on the connection.
+	 * @param conn
+	 * @param request
+	 * @throws IOException
+	 */
+	private void respond(Connection conn, Request request) throws IOException {
+		boolean http11 = request.version.equals("HTTP/1.1");
+		if (!http11 && !request.version.equals("HTTP/1.0")) {
+			conn.closeAfter = true;
+			conn.sendEmpty(505);
+			return;
+		}
+		// HTTP/1.1 connections stay open unless asked otherwise, 1.0 ones only if asked
+		String connection = request.getHeader("Connection");
+		if (http11)
+			conn.closeAfter = connection != null && hasToken(connection, "close");
+		else
+			conn.closeAfter = connection == null || !hasToken(connection, "keep-alive");
+		conn.keepAliveHeader = !http11 && !conn.closeAfter;
+
+		boolean headOnly = request.method.equals("HEAD");
+		if (!headOnly && !request.method.equals("GET")) {
+			conn.closeAfter = true;
+			conn.start(405);
+			conn.header("Allow", "GET, HEAD");
+			conn.header("Content-Length", "0");
+			conn.endHeaders();
+			return;
+		}
+		// We don't read request bodies, so can't tell where the next request starts
+		String contentLength = request.getHeader("Content-Length");
+		if (request.getHeader("Transfer-Encoding") != null || (contentLength != null && !contentLength.equals("0"))) {
+			conn.closeAfter = true;
+			conn.sendEmpty(400);
+			return;
+		}
+
+		// Find the ID (and the filename after it) in the URL: /files/<id>/<name>
+		String uri = request.uri;
+		if (!uri.equals("/files") && !uri.startsWith("/files/")) {
+			conn.sendEmpty(404);
+			return;
+		}
+		int idStart = uri.indexOf('/', 1) + 1;
+		if (idStart == 0 || idStart == uri.length()) {
+			conn.sendEmpty(400);
+			return;
+		}
+		int idEnd = uri.indexOf('/', idStart);
+		if (idEnd == -1)
+			idEnd = uri.length();
+		String fileID = uri.substring(idStart, idEnd);
+		if (signer != null && !checkSignature(conn, request, fileID, uri, idEnd))
+			return;
+
+		// Cache hits are served without touching the repository at all
+		FileRepository fileRep = node.getFileRepository();
+		HotFileCache cache = fileRep.getCache();
+		HotFileCache.CachedFile cached = null;
+		if (cache != null)
+			cached = cache.get(fileID);
+
+		RMFile file;
+		if (cached != null)
+			file = cached.getFile();
+		else
+			file = fileRep.getFileById(fileID);
+
+		boolean workerDL = FileServlet.isWorkerDownload(uri, idEnd);
+		if (file == null) {
+			// Fetching the file would hold everyone else on this loop up, so the
+			// client goes elsewhere for it. Workers fetching a copy just get a 404.
+			String missURL = null;
+			if (missLocator != null && !workerDL)
+				missURL = missLocator.locateURL(fileID, FileServlet.fileNameOf(uri, idEnd), conn.remoteAddr, null);
+			if (missURL != null) {
+				logRequest(conn, uri, idEnd, fileID, "Not found, redirected");
+				conn.redirect(missURL);
+				return;
+			}
+			logRequest(conn, uri, idEnd, fileID, "Not found");
+			byte[] page = ("<b>404 Not Found</b><br/>Could not find a file with ID " + fileID).getBytes(ISO_8859_1);
+			conn.start(404);
+			conn.header("Content-Type", "text/html");
+			conn.header("Content-Length", String.valueOf(page.length));
+			conn.endHeaders();
+			if (!headOnly)
+				conn.out.add(ByteBuffer.wrap(page));
+			return;
+		}
+
+		logRequest(conn, uri, idEnd, fileID, workerDL ? " (Worker Download) Found locally" : "Found locally");
+
+		// Text-like files may have a precompressed copy we can send instead.
+		// Ranges always refer to the uncompressed data.
+		boolean compressible = FileUtils.isCompressible(file.getName(), file.getMimetype());
+		File gzipFile = null;
+		if (compressible && request.getHeader("Range") == null
+			&& HTTPUtils.acceptsEncoding(request.getHeader("Accept-Encoding"), "gzip"))
+			gzipFile = fileRep.getCompressedDataFile(fileID);
+
+		FileHeaders headers = file.getHeaders();
+		String etag = (gzipFile != null ? headers.getGzipETag() : headers.getETag());
+		long lastModified = file.getUploaded();
+		if (FileServlet.notModified(request.getHeader("If-None-Match"), request.getHeader("If-Modified-Since"), etag,
+			headers.getLastModified(), lastModified)) {
+			conn.start(304);
+			cacheHeaders(conn, file, etag, compressible, workerDL);
+			conn.endHeaders();
+			return;
+		}
+
+		// Turn the download away rather than pile more work on an overloaded node
+		if (!headOnly && admission != null) {
+			if (!admission.tryAdmit(null)) {
+				String exclude = null;
+				if (request.query != null)
+					exclude = request.getParameter("exclude");
+				shed(conn, fileID, uri, idEnd, exclude);
+				return;
+			}
+			conn.admitted = true;
+		}
+
+		List<ByteRange> ranges = null;
+		if (gzipFile == null && FileServlet.ifRangeMatches(request.getHeader("If-Range"), etag, lastModified))
+			ranges = ByteRange.parse(request.getHeader("Range"), file.getSize());
+		if (ranges != null && ranges.isEmpty()) {
+			conn.start(416);
+			conn.header("Content-Range", "bytes */" + file.getSize());
+			conn.header("Content-Length", "0");
+			conn.endHeaders();
+			return;
+		}
+
+		if (!headOnly) {
+			if (cached == null && gzipFile == null && cache != null)
+				cached = cache.offer(file, fileRep);
+			if (cached == null) {
+				File dataFile = (gzipFile != null ? gzipFile : fileRep.getFileDataFile(fileID));
+				if (dataFile == null) {
+					// Removed since we looked it up
+					conn.sendEmpty(404);
+					return;
+				}
+				conn.file = new RandomAccessFile(dataFile, "r").getChannel();
+			}
+		}
+
+		if (gzipFile != null) {
+			conn.start(200);
+			cacheHeaders(conn, file, etag, compressible, workerDL);
+			conn.header("Content-Type", file.getMimetype());
+			conn.header("Content-Encoding", "gzip");
+			conn.header("Content-Length", String.valueOf(gzipFile.length()));
+			conn.endHeaders();
+			if (!headOnly)
+				conn.body(null, 0, conn.file.size());
+		} else if (ranges == null) {
+			// Whole file
+			conn.start(200);
+			cacheHeaders(conn, file, etag, compressible, workerDL);
+			conn.header("Content-Type", file.getMimetype());
+			conn.header("Content-Length", headers.getContentLength());
+			conn.endHeaders();
+			if (!headOnly)
+				conn.body(cached, 0, file.getSize());
+		} else if (ranges.size() == 1) {
+			ByteRange range = ranges.get(0);
+			conn.start(206);
+			cacheHeaders(conn, file, etag, compressible, workerDL);
+			conn.header("Content-Type", file.getMimetype());
+			conn.header("Content-Range", range.toContentRange(file.getSize()));
+			conn.header("Content-Length", String.valueOf(range.getLength()));
+			conn.endHeaders();
+			if (!headOnly)
+				conn.body(cached, range.getStart(), range.getLength());
+		} else {
+			// Build the part headers first so we know the total length up front
+			String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(file.getSize());
+			byte[][] partHeaders = new byte[ranges.size()][];
+			long length = 0;
+			for (int i = 0; i < ranges.size(); i++) {
+				ByteRange range = ranges.get(i);
+				partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + file.getMimetype()
+					+ "\r\nContent-Range: " + range.toContentRange(file.getSize()) + "\r\n\r\n").getBytes(ISO_8859_1);
+				length += partHeaders[i].length + range.getLength();
+			}
+			byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(ISO_8859_1);
+			length += trailer.length;
+
+			conn.start(206);
+			cacheHeaders(conn, file, etag, compressible, workerDL);
+			conn.header("Content-Type", "multipart/byteranges; boundary=" + boundary);
+			conn.header("Content-Length", String.valueOf(length));
+			conn.endHeaders();
+			if (!headOnly) {
+				for (int i = 0; i < ranges.size(); i++) {
+					conn.out.add(ByteBuffer.wrap(partHeaders[i]));
+					conn.body(cached, ranges.get(i).getStart(), ranges.get(i).getLength());
+				}
+				conn.out.add(ByteBuffer.wrap(trailer));
+			}
+		}
+	}
+
+	// Add the headers that let clients and caches keep a file
+	private void cacheHeaders(Connection conn, RMFile file, String etag, boolean compressible, boolean workerDL)
+		throws UnsupportedEncodingException {
+		conn.header("ETag", etag);
+		conn.header("Last-Modified", file.getHeaders().getLastModified());
+		conn.header("Expires", expiresClock.get());
+		conn.header("Cache-Control", cacheControl);
+		conn.header("Accept-Ranges", "bytes");
+		if (compressible)
+			conn.header("Vary", "Accept-Encoding");
+		if (workerDL) {
+			// Lets a worker that is pulling a file it hasn't been told about
+			// (see FileMissHandler) learn its name
+			conn.header("X-RM-Name", URLEncoder.encode(file.getName(), "UTF-8"));
+		}
+	}
+
+	// Check that the request's URL was signed for this file. If not, send the
+	// client to get a new URL, or refuse it if the signature is wrong.
+	private boolean checkSignature(Connection conn, Request request, String fileID, String uri, int idEnd) {
+		URLSigner.Check check = URLSigner.Check.MISSING;
+		if (request.query != null)
+			check = signer.check(fileID, request.getParameter("expires"), request.getParameter("sig"));
+		if (check == URLSigner.Check.VALID)
+			return true;
+
+		String renewURL = null;
+		if (check != URLSigner.Check.INVALID && renewLocator != null)
+			renewURL = renewLocator.locateURL(fileID, FileServlet.fileNameOf(uri, idEnd), conn.remoteAddr, null);
+		if (renewURL != null) {
+			logRequest(conn, uri, idEnd, fileID, "Signature " + check.name().toLowerCase() + ", redirected");
+			conn.redirect(renewURL);
+		} else {
+			logRequest(conn, uri, idEnd, fileID, "Signature " + check.name().toLowerCase());
+			conn.start(403);
+			conn.header("Cache-Control", "no-store");
+			conn.header("Content-Length", "0");
+			conn.endHeaders();
+		}
+		return false;
+	}
+
+	// Turn away a download because we're overloaded: send the client somewhere
+	// else if we can, otherwise tell it to come back later.
+	private void shed(Connection conn, String fileID, String uri, int idEnd, String exclude) {
+		String redirURL = null;
+		if (overflowLocator != null)
+			redirURL = overflowLocator.locateURL(fileID, FileServlet.fileNameOf(uri, idEnd), conn.remoteAddr, exclude);
+		if (redirURL != null) {
+			logRequest(conn, uri, idEnd, fileID, "Overloaded, redirected");
+			conn.redirect(redirURL);
+		} else {
+			logRequest(conn, uri, idEnd, fileID, "Overloaded");
+			conn.start(503);
+			conn.header("Cache-Control", "no-store");
+			conn.header("Retry-After", String.valueOf(retryAfter));
+			conn.header("Content-Length", "0");
+			conn.endHeaders();
+		}
+	}
+
+	// Log the outcome of a request, if we're logging requests at all.
+	private void logRequest(Connection conn, String uri, int idEnd, String fileID, String result) {
+		if (!logRequests)
+			return;
+		node.getLog().info("File " + fileID + " (" + FileServlet.fileNameOf(uri, idEnd) + ") requested by "
+			+ conn.remoteAddr + " [Result: " + result + "]");
+	}
+
+	// Take the next complete request header off the front of the buffer, or
+	// return null if it hasn't all arrived yet. Throws IllegalArgumentException
+	// if the request can't be made sense of.
+	private static Request takeRequest(ByteBuffer in) {
+		byte[] buf = in.array();
+		int length = in.position();
+
+		// Blank lines before a request are allowed, and can be thrown away
+		int start = 0;
+		while (start < length && (buf[start] == '\r' || buf[start] == '\n'))
+			start++;
+
+		int end = -1;
+		for (int i = start; i < length - 1 && end == -1; i++) {
+			if (buf[i] != '\n')
+				continue;
+			if (buf[i + 1] == '\n')
+				end = i + 2;
+			else if (buf[i + 1] == '\r' && i + 2 < length && buf[i + 2] == '\n')
+				end = i + 3;
+		}
+		if (end == -1) {
+			if (start > 0)
+				discard(in, start);
+			return null;
+		}
+
+		String header = new String(buf, start, end - start, ISO_8859_1);
+		discard(in, end);
+		return new Request(header);
+	}
+
+	// Drop the first count bytes read into a buffer
+	private static void discard(ByteBuffer in, int count) {
+		in.flip();
+		in.position(count);
+		in.compact();
+	}
+
+	// Whether a comma-separated header value contains the given token
+	private static boolean hasToken(String value, String token) {
+		for (String part : value.split(",")) {
+			if (part.trim().equalsIgnoreCase(token))
+				return true;
+		}
+		return false;
+	}
+
+	// Standard reason phrase for the statuses we send
+	private static String reason(int status) {
+		switch (status) {
+		case 200:
+			return "OK";
+		case 206:
+			return "Partial Content";
+		case 302:
+			return "Found";
+		case 304:
+			return "Not Modified";
+		case 400:
+			return "Bad Request";
+		case 403:
+			return "Forbidden";
+		case 404:
+			return "Not Found";
+		case 405:
+			return "Method Not Allowed";
+		case 416:
+			return "Requested Range Not Satisfiable";
+		case 503:
+			return "Service Unavailable";
+		case 505:
+			return "HTTP Version Not Supported";
+		default:
+			return "Unknown";
+		}
+	}
+
+	/**
+	 * A selector loop, and the connections it looks after.
+	 */
+	private class Loop implements Runnable {
+		private Selector selector;
+		private ConcurrentLinkedQueue<SocketChannel> accepted;
+		private long lastSweep;
+
+		private Loop() throws IOException {
+			this.selector = Selector.open();
+			this.accepted = new ConcurrentLinkedQueue<SocketChannel>();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					selector.select(1000);
+				} catch (IOException e) {
+					node.getLog().warn("HTTP selector failed: " + e.getMessage());
+					continue;
+				}
+
+				SocketChannel channel;
+				while ((channel = accepted.poll()) != null)
+					register(channel);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept((ServerSocketChannel)key.channel());
+						continue;
+					}
+					Connection conn = (Connection)key.attachment();
+					try {
+						if (key.isWritable())
+							conn.write();
+						else if (key.isReadable())
+							conn.read();
+					} catch (IOException e) {
+						conn.close();
+					} catch (RuntimeException e) {
+						// Don't let one bad request take the whole loop down
+						node.getLog().warn("Error serving HTTP request: " + e);
+						conn.close();
+					}
+				}
+
+				// Close connections that have been idle for too long
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= 1000) {
+					lastSweep = now;
+					for (SelectionKey key : selector.keys()) {
+						if (key.attachment() instanceof Connection) {
+							Connection conn = (Connection)key.attachment();
+							if (now - conn.lastActive > idleTimeout)
+								conn.close();
+						}
+					}
+				}
+			}
+		}
+
+		// Hand a newly accepted connection to this loop
+		private void add(SocketChannel channel) {
+			accepted.add(channel);
+			selector.wakeup();
+		}
+
+		// Accept waiting connections, dealing them out to the loops in turn
+		private void accept(ServerSocketChannel server) {
+			try {
+				SocketChannel channel;
+				while ((channel = server.accept()) != null) {
+					Loop loop = loops[nextLoop];
+					nextLoop = (nextLoop + 1) % loops.length;
+					if (loop == this)
+						register(channel);
+					else
+						loop.add(channel);
+				}
+			} catch (IOException e) {
+				node.getLog().warn("Could not accept HTTP connection: " + e.getMessage());
+			}
+		}
+
+		// Start looking after a connection
+		private void register(SocketChannel channel) {
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				if (sendBuffer > 0)
+					channel.socket().setSendBufferSize(sendBuffer);
+				if (receiveBuffer > 0)
+					channel.socket().setReceiveBufferSize(receiveBuffer);
+				Connection conn = new Connection(channel);
+				conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+			} catch (IOException e) {
+				try {
+					channel.close();
+				} catch (IOException e2) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * A client connection. Requests are answered one at a time: the next one
+	 * (which may already be in the buffer, if the client pipelines them) isn't
+	 * looked at until the response to the last has been sent.
+	 */
+	private class Connection {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private String remoteAddr;
+		private long lastActive;
+		private ByteBuffer in;
+
+		// The response being sent: ByteBuffers and FileRegions of the open file
+		private ArrayDeque<Object> out;
+		private FileChannel file;
+		private StringBuilder head;
+		private boolean admitted, closeAfter, keepAliveHeader;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.remoteAddr = channel.socket().getInetAddress().getHostAddress();
+			this.lastActive = System.currentTimeMillis();
+			this.in = ByteBuffer.allocate(MAX_HEADER_SIZE);
+			this.out = new ArrayDeque<Object>();
+		}
+
+		// Read what the client has sent, and answer any requests now complete
+		private void read() throws IOException {
+			if (channel.read(in) == -1) {
+				close();
+				return;
+			}
+			lastActive = System.currentTimeMillis();
+			handleRequests();
+		}
+
+		// Carry on sending a response, and move on to the next request once done
+		private void write() throws IOException {
+			if (flush())
+				handleRequests();
+		}
+
+		// Answer requests until one can't be answered straight away or there are
+		// no more, then wait for whatever is needed next
+		private void handleRequests() throws IOException {
+			while (channel.isOpen()) {
+				Request request;
+				try {
+					request = takeRequest(in);
+					if (request == null && !in.hasRemaining())
+						throw new IllegalArgumentException("Request header too large");
+				} catch (IllegalArgumentException e) {
+					closeAfter = true;
+					sendEmpty(400);
+					request = null;
+				}
+				if (request != null)
+					respond(this, request);
+				else if (out.isEmpty()) {
+					key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+				if (!flush()) {
+					if (channel.isOpen())
+						key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		}
+
+		// Send as much of the response as the socket will take. Returns whether
+		// it has all been sent.
+		private boolean flush() throws IOException {
+			long written = 0;
+			while (!out.isEmpty()) {
+				Object part = out.peek();
+				if (part instanceof ByteBuffer) {
+					ByteBuffer buffer = (ByteBuffer)part;
+					int sent = channel.write(buffer);
+					if (sent > 0) {
+						written += sent;
+						lastActive = System.currentTimeMillis(); // A long download isn't idle
+					}
+					if (buffer.hasRemaining())
+						return false;
+				} else {
+					FileRegion region = (FileRegion)part;
+					long count = Math.min(region.end - region.position, MAX_WRITE_PER_TURN);
+					long sent = file.transferTo(region.position, count, channel);
+					// Nothing sent can mean a full socket, or a file cut short
+					if (sent == 0 && region.position >= file.size())
+						throw new IOException("File is shorter than expected");
+					region.position += sent;
+					if (sent > 0) {
+						written += sent;
+						lastActive = System.currentTimeMillis();
+					}
+					if (region.position < region.end) {
+						if (sent == 0 || written >= MAX_WRITE_PER_TURN)
+							return false;
+						continue;
+					}
+				}
+				out.poll();
+				if (written >= MAX_WRITE_PER_TURN && !out.isEmpty())
+					return false;
+			}
+
+			// All sent
+			endResponse();
+			if (closeAfter)
+				close();
+			return channel.isOpen();
+		}
+
+		// Start a response with the given status
+		private void start(int status) {
+			head = new StringBuilder(512);
+			head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+			header("Date", dateClock.get());
+		}
+
+		// Add a header to the response being started
+		private void header(String name, String value) {
+			head.append(name).append(": ").append(value).append("\r\n");
+		}
+
+		// Finish the response's header and queue it to be sent
+		private void endHeaders() {
+			if (closeAfter)
+				header("Connection", "close");
+			else if (keepAliveHeader)
+				header("Connection", "keep-alive");
+			head.append("\r\n");
+			out.add(ByteBuffer.wrap(head.toString().getBytes(ISO_8859_1)));
+			head = null;
+		}
+
+		// Queue part of the file's data to be sent, from the cache if given
+		private void body(HotFileCache.CachedFile cached, long offset, long length) {
+			if (cached != null) {
+				ByteBuffer data = cached.getData();
+				data.position((int)offset);
+				data.limit((int)(offset + length));
+				out.add(data);
+			} else
+				out.add(new FileRegion(offset, offset + length));
+		}
+
+		// Send a response with no body
+		private void sendEmpty(int status) {
+			start(status);
+			header("Content-Length", "0");
+			endHeaders();
+		}
+
+		// Send the client to another URL
+		private void redirect(String url) {
+			start(302);
+			header("Location", url);
+			header("Cache-Control", "no-store");
+			header("Content-Length", "0");
+			endHeaders();
+		}
+
+		// Let go of what the last response held on to
+		private void endResponse() {
+			out.clear();
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+				file = null;
+			}
+			if (admitted) {
+				admitted = false;
+				admission.release();
+			}
+		}
+
+		private void close() {
+			endResponse();
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Part of the open file still to be sent.
+	 */
+	private static class FileRegion {
+		private long position, end;
+
+		private FileRegion(long position, long end) {
+			this.position = position;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * The parts of a request we look at.
+	 */
+	private static class Request {
+		private String method, uri, query, version;
+		private Map<String, String> headers;
+		private Map<String, String> params;
+
+		private Request(String header) {
+			String[] lines = header.split("\r?\n");
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3)
+				throw new IllegalArgumentException("Bad request line");
+			method = requestLine[0];
+			version = requestLine[2];
+
+			// Proxies send the whole URL
+			String target = requestLine[1];
+			if (!target.startsWith("/")) {
+				int hostStart = target.indexOf("://");
+				if (hostStart == -1)
+					throw new IllegalArgumentException("Bad request URI");
+				int pathStart = target.indexOf('/', hostStart + 3);
+				target = (pathStart == -1 ? "/" : target.substring(pathStart));
+			}
+			int queryStart = target.indexOf('?');
+			uri = (queryStart == -1 ? target : target.substring(0, queryStart));
+			query = (queryStart == -1 ? null : target.substring(queryStart + 1));
+
+			headers = new HashMap<String, String>();
+			for (int i = 1; i < lines.length; i++) {
+				if (lines[i].length() == 0)
+					continue;
+				int colon = lines[i].indexOf(':');
+				if (colon <= 0 || lines[i].charAt(0) == ' ' || lines[i].charAt(0) == '\t')
+					throw new IllegalArgumentException("Bad header line");
+				String name = lines[i].substring(0, colon).trim().toLowerCase();
+				String value = lines[i].substring(colon + 1).trim();
+				String previous = headers.get(name);
+				headers.put(name, previous == null ? value : previous + ", " + value);
+			}
+		}
+
+		// Get a header's value, or null if it wasn't sent
+		private String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		// Get a query string parameter, or null if it wasn't given
+		private String getParameter(String name) {
+			if (params == null) {
+				params = new HashMap<String, String>();
+				for (String pair : query.split("&")) {
+					int eq = pair.indexOf('=');
+					String key = (eq == -1 ? pair : pair.substring(0, eq));
+					if (params.containsKey(key))
+						continue;
+					try {
+						params.put(key, eq == -1 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+					} catch (UnsupportedEncodingException e) {
+					} catch (IllegalArgumentException e) {
+						// Bad escapes; the parameter is as good as missing
+					}
+				}
+			}
+			return params.get(name);
+		}
+	}
+
+}
@@ -48,6 +48,11 @@ public class RMFile implements Serializable {
 	private String name, id, mimetype;
 	private long size;
 	private byte[] sha256hash;
+	private long uploaded;
+
+	// Worked out on first use, and again whenever the file changes
+	private transient FileHeaders headers;
+	private transient byte[][] pieceHashes;
 
 	/**
 	 * Constructor - generates an id randomly upon creation.
@@ -63,6 +68,22 @@ public class RMFile implements Serializable {
 		this.mimetype = mimetype;
 		this.size = size;
 		this.sha256hash = hash;
+		this.uploaded = System.currentTimeMillis();
+	}
+
+	/**
+	 * Constructor for a file whose id is already known, e.g. one learned about
+	 * from another node.
+	 * 
+	 * @param id
+	 * @param name
+	 * @param mimetype
+	 * @param size
+	 * @param hash
+	 */
+	public RMFile(String id, String name, String mimetype, long size, byte[] hash) {
+		this(name, mimetype, size, hash);
+		this.id = id;
 	}
 
 	/**
@@ -118,8 +139,10 @@ public class RMFile implements Serializable {
 	 * Set the size of this file in bytes.
 	 * @param size
 	 */
-	public void setSize(int size) {
+	public void setSize(long size) {
 		this.size = size;
+		headers = null;
+		pieceHashes = null;
 	}
 
 	/**
@@ -136,6 +159,58 @@ public class RMFile implements Serializable {
 	 */
 	public void setHash(byte[] hash) {
 		this.sha256hash = hash;
+		headers = null;
+		pieceHashes = null;
+	}
+
+	/**
+	 * Get the time this file was uploaded, in milliseconds since the epoch. The
+	 * data under a file ID never changes, so this doubles as its modification
+	 * time.
+	 * @return
+	 */
+	public long getUploaded() {
+		return uploaded;
+	}
+
+	/**
+	 * Set the time this file was uploaded, in milliseconds since the epoch.
+	 * @param uploaded
+	 */
+	public void setUploaded(long uploaded) {
+		this.uploaded = uploaded;
+		headers = null;
+	}
+
+	/**
+	 * Get the HTTP response header values for this file.
+	 * @return
+	 */
+	public FileHeaders getHeaders() {
+		FileHeaders fileHeaders = headers;
+		if (fileHeaders == null) {
+			fileHeaders = new FileHeaders(this);
+			headers = fileHeaders;
+		}
+		return fileHeaders;
+	}
+
+	/**
+	 * Get the hashes of this file's pieces for download manifests, or null if
+	 * they haven't been worked out yet.
+	 * @return
+	 */
+	public byte[][] getPieceHashes() {
+		return pieceHashes;
+	}
+
+	/**
+	 * Set the hashes of this file's pieces for download manifests. They are
+	 * not saved with the file.
+	 * @param pieceHashes
+	 */
+	public void setPieceHashes(byte[][] pieceHashes) {
+		this.pieceHashes = pieceHashes;
 	}
 
 	public boolean equals(Object o) {
@@ -32,39 +32,132 @@
 
 package net.voidfunction.rm.common;
 
+import java.io.IOException;
+import java.net.Socket;
+
 import javax.servlet.http.HttpServlet;
 
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 /**
  * Simple, generic, Jetty-powered servlet container.
  */
 public class RMHTTPServer {
 
+	/**
+	 * Starting points for tuning the connector and thread pool to the kind of
+	 * traffic a server sees. Any individual setting can be overridden in the
+	 * config file.
+	 */
+	public static enum Preset {
+		/**
+		 * Lots of clients each making quick requests with tiny responses
+		 * (redirects, small pages). Many threads, short keep-alive, small
+		 * buffers.
+		 */
+		REDIRECTOR(2, 1024, 16, 256, 2048, 0, 0, 15000, 2000, 8),
+
+		/**
+		 * Fewer clients, each pulling a large file for a long time. Fewer
+		 * threads, long idle timeout, big buffers so the socket is kept full.
+		 */
+		FILESERVER(1, 256, 8, 64, 512, 512, 0, 60000, 10000, 64);
+
+		private int acceptors, acceptQueue, minThreads, maxThreads, maxQueued;
+		private int sendBuffer, receiveBuffer, idleTimeout, lowResourcesIdleTimeout, responseBuffer;
+
+		private Preset(int acceptors, int acceptQueue, int minThreads, int maxThreads, int maxQueued,
+			int sendBuffer, int receiveBuffer, int idleTimeout, int lowResourcesIdleTimeout, int responseBuffer) {
+			this.acceptors = acceptors;
+			this.acceptQueue = acceptQueue;
+			this.minThreads = minThreads;
+			this.maxThreads = maxThreads;
+			this.maxQueued = maxQueued;
+			this.sendBuffer = sendBuffer;
+			this.receiveBuffer = receiveBuffer;
+			this.idleTimeout = idleTimeout;
+			this.lowResourcesIdleTimeout = lowResourcesIdleTimeout;
+			this.responseBuffer = responseBuffer;
+		}
+	}
+
 	private Server server;
 	private ServletContextHandler context;
 
 	/**
 	 * Creates a new HTTP servlet container that will run on
-	 * the given TCP port.
+	 * the given TCP port, with Jetty's default settings.
 	 * @param port
 	 */
 	public RMHTTPServer(int port) {
 		server = new Server(port);
-		context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+		init();
+	}
+
+	/**
+	 * Creates a new HTTP servlet container that will run on the given TCP
+	 * port, tuned according to the given preset. The preset can be changed
+	 * with http.preset, and each of its settings overridden, in the config.
+	 * @param port
+	 * @param config
+	 * @param preset
+	 */
+	public RMHTTPServer(int port, RMConfig config, Preset preset) {
+		try {
+			preset = Preset.valueOf(config.getString("http.preset", preset.name()).trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			// Unknown preset name; stick with the one for this role
+		}
+
+		TunedConnector connector = new TunedConnector();
+		connector.setPort(port);
+		connector.setAcceptors(Math.max(1, config.getInt("http.acceptors", preset.acceptors)));
+		connector.setAcceptQueueSize(config.getInt("http.acceptqueue", preset.acceptQueue));
+		connector.setMaxIdleTime(config.getInt("http.idletimeout", preset.idleTimeout));
+		connector.setLowResourcesMaxIdleTime(config.getInt("http.idletimeout.lowresources",
+			preset.lowResourcesIdleTimeout));
+		connector.setResponseBufferSize(config.getInt("http.responsebuffer", preset.responseBuffer) * 1024);
+		connector.sendBuffer = config.getInt("http.sndbuf", preset.sendBuffer) * 1024;
+		connector.receiveBuffer = config.getInt("http.rcvbuf", preset.receiveBuffer) * 1024;
+
+		// Each acceptor also brings a selector, and both live in the pool
+		int minThreads = config.getInt("http.threads.min", preset.minThreads);
+		int maxThreads = config.getInt("http.threads.max", preset.maxThreads);
+		maxThreads = Math.max(maxThreads, Math.max(minThreads, connector.getAcceptors() * 2 + 4));
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setName("http-" + port);
+		threadPool.setMinThreads(minThreads);
+		threadPool.setMaxThreads(maxThreads);
+		threadPool.setMaxQueued(config.getInt("http.threads.queue", preset.maxQueued));
+
+		server = new Server();
+		server.setThreadPool(threadPool);
+		server.setConnectors(new Connector[] { connector });
+		init();
+	}
+
+	// Set up the servlet context
+	private void init() {
+		context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
 		context.setContextPath("/");
 		server.setHandler(context);
 	}
 
 	/**
-	 * Adds a servlet to run on the server at the given path.
+	 * Adds a servlet to run on the server at the given path. Servlets may put
+	 * their requests into asynchronous mode.
 	 * @param path
 	 * @param servlet
 	 */
 	public void addServlet(String path, HttpServlet servlet) {
-		context.addServlet(new ServletHolder(servlet), path);
+		ServletHolder holder = new ServletHolder(servlet);
+		holder.setAsyncSupported(true);
+		context.addServlet(holder, path);
 	}
 
 	/**
@@ -75,4 +168,20 @@ public class RMHTTPServer {
 		server.start();
 	}
 
+	/**
+	 * NIO connector that can also set the socket buffer sizes of the
+	 * connections it accepts. 0 leaves the operating system's default.
+	 */
+	private static class TunedConnector extends SelectChannelConnector {
+		private int sendBuffer, receiveBuffer;
+
+		protected void configure(Socket socket) throws IOException {
+			super.configure(socket);
+			if (sendBuffer > 0)
+				socket.setSendBufferSize(sendBuffer);
+			if (receiveBuffer > 0)
+				socket.setReceiveBufferSize(receiveBuffer);
+		}
+	}
+
 }
@@ -59,6 +59,7 @@ public class RMPacket implements Serializable {
 		 * Fields:
 		 * - httpport: int, port number for the worker node's http server
 		 * - httphost: String, worker's public IP or hostname
+		 * - bandwidth: int, worker's upload limit in KB/s, or 0 if unlimited
 		 */
 		WORKER_INFO,
 
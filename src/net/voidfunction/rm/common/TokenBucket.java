@@ -0,0 +1,112 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, for limiting the rate of something (e.g. bytes
+ * sent) without making callers contend on a lock.
+ * 
+ * Rather than counting tokens, the bucket keeps a single timestamp: the time
+ * at which everything handed out so far will have been "paid for" at the
+ * configured rate. Taking tokens pushes that time forward with a single
+ * compare-and-set; as long as it stays within one burst's worth of the
+ * present, the tokens are available immediately.
+ */
+public class TokenBucket {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final long rate;
+	private final long burstNanos;
+	private final AtomicLong paidUntil;
+
+	/**
+	 * Creates a new, full bucket.
+	 * @param rate tokens added per second
+	 * @param burst most tokens that can be taken at once after a quiet period
+	 */
+	public TokenBucket(long rate, long burst) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("Rate must be positive");
+		this.rate = rate;
+		this.burstNanos = burst * NANOS_PER_SECOND / rate;
+		this.paidUntil = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Get the number of tokens added per second.
+	 * @return
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Take the given number of tokens, whether or not they are available yet.
+	 * Returns how long, in nanoseconds, the caller should wait before using
+	 * them; 0 if it can go ahead now.
+	 * @param tokens
+	 * @return
+	 */
+	public long reserve(long tokens) {
+		long cost = tokens * NANOS_PER_SECOND / rate;
+		while (true) {
+			long now = System.nanoTime();
+			long prev = paidUntil.get();
+			long next = Math.max(prev, now) + cost;
+			if (paidUntil.compareAndSet(prev, next))
+				return Math.max(0, next - now - burstNanos);
+		}
+	}
+
+	/**
+	 * Take the given number of tokens only if they are available right now.
+	 * @param tokens
+	 * @return whether the tokens were taken
+	 */
+	public boolean tryTake(long tokens) {
+		long cost = tokens * NANOS_PER_SECOND / rate;
+		while (true) {
+			long now = System.nanoTime();
+			long prev = paidUntil.get();
+			long next = Math.max(prev, now) + cost;
+			if (next - now > burstNanos)
+				return false;
+			if (paidUntil.compareAndSet(prev, next))
+				return true;
+		}
+	}
+
+}
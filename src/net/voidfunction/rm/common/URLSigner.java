@@ -0,0 +1,164 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.common;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Signs and checks time-limited download URLs, so that workers can tell a URL
+ * was handed out by the master without asking it. A signature is an HMAC of
+ * what the URL gives access to (e.g. a file ID) and an expiry time, keyed with
+ * a key derived from the cluster password, which every node already has.
+ * 
+ * Expiry times are rounded up to a fraction of the lifetime, so the master hands
+ * out the same URL for a while and clients and caches can reuse it. A URL stays
+ * valid for between one and one and an eighth lifetimes.
+ */
+public class URLSigner {
+
+	/**
+	 * The outcome of checking a request's signature.
+	 */
+	public enum Check {
+		VALID, MISSING, EXPIRED, INVALID
+	}
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int SIGNATURE_BYTES = 16;
+
+	private final SecretKeySpec key;
+	private final int lifetime;
+	private final int step;
+
+	// Macs aren't thread-safe and are costly to set up, so each thread keeps one
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		protected Mac initialValue() {
+			return newMac(key);
+		}
+	};
+
+	/**
+	 * Creates a new URLSigner.
+	 * @param password the cluster password, from which the key is derived
+	 * @param lifetime how long (in seconds) signed URLs are valid for at least
+	 */
+	public URLSigner(String password, int lifetime) {
+		// Don't use the password itself, in case signatures ever leak anything
+		Mac derive = newMac(new SecretKeySpec(utf8(password), ALGORITHM));
+		this.key = new SecretKeySpec(derive.doFinal(utf8("RingMachine signed URLs")), ALGORITHM);
+		this.lifetime = Math.max(1, lifetime);
+		this.step = Math.max(1, this.lifetime / 8);
+	}
+
+	/**
+	 * Get the least time (in seconds) a newly signed URL is valid for.
+	 * @return
+	 */
+	public int getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * Sign access to the given subject (e.g. a file ID), returning the query
+	 * string parameters to add to the URL.
+	 * @param subject
+	 * @return
+	 */
+	public String sign(String subject) {
+		long now = System.currentTimeMillis() / 1000;
+		long expires = (now + lifetime + step - 1) / step * step;
+		return "expires=" + expires + "&sig=" + signature(subject, expires);
+	}
+
+	/**
+	 * Check the signature parameters from a URL for the given subject.
+	 * @param subject
+	 * @param expiresParam the "expires" parameter, or null if not given
+	 * @param sigParam the "sig" parameter, or null if not given
+	 * @return
+	 */
+	public Check check(String subject, String expiresParam, String sigParam) {
+		if (expiresParam == null || sigParam == null)
+			return Check.MISSING;
+		long expires;
+		try {
+			expires = Long.parseLong(expiresParam);
+		} catch (NumberFormatException e) {
+			return Check.INVALID;
+		}
+		// Constant-time comparison, so signatures can't be guessed byte by byte
+		if (!MessageDigest.isEqual(utf8(signature(subject, expires)), utf8(sigParam)))
+			return Check.INVALID;
+		if (expires < System.currentTimeMillis() / 1000)
+			return Check.EXPIRED;
+		return Check.VALID;
+	}
+
+	// Work out the (URL-safe base64) signature for a subject and expiry time
+	private String signature(String subject, long expires) {
+		Mac mac = macs.get();
+		mac.update(utf8(subject));
+		mac.update((byte)'\n');
+		byte[] hmac = mac.doFinal(utf8(String.valueOf(expires)));
+		return Base64.encodeBase64URLSafeString(Arrays.copyOf(hmac, SIGNATURE_BYTES));
+	}
+
+	private static Mac newMac(SecretKeySpec key) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			// Every JVM has HMAC-SHA256
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// Every JVM has UTF-8
+			throw new RuntimeException(e);
+		}
+	}
+
+}
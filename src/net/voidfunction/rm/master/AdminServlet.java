@@ -32,18 +32,24 @@
 
 package net.voidfunction.rm.master;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.util.Collection;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.http.*;
 
 import org.apache.commons.codec.binary.Hex;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.AbstractHttpConnection;
 
 import net.sf.jtpl.Template;
 import net.voidfunction.rm.common.*;
@@ -55,6 +61,8 @@ import net.voidfunction.rm.common.*;
 public class AdminServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
+	private static final Pattern UUID_PATTERN = Pattern
+		.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
 	private String templateDir;
 	private MasterNode node;
 
@@ -192,6 +200,99 @@ public class AdminServlet extends HttpServlet {
 		node.getLog().info("New file added (via web): " + newFile.getId() + " (" + newFile.getName() + ")");
 	}
 
+	/*
+	 * Publishing: PUT /admin/publish/<filename> with the file's data as the
+	 * request body. Unlike a form upload, the file can be downloaded while the
+	 * data is still arriving. So that it can be linked to before then, the
+	 * uploader may choose the file's ID (a UUID) with ?id=<id>.
+	 */
+	protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String path = request.getPathInfo();
+		if (path == null || !path.startsWith("/publish/") || path.length() == "/publish/".length()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		String filename = path.substring("/publish/".length());
+		String contentType = request.getContentType();
+		if (contentType == null)
+			contentType = FileUtils.mimeType(filename);
+		long size = -1; // Unknown for chunked uploads
+		String lengthHeader = request.getHeader("Content-Length");
+		if (lengthHeader != null) {
+			try {
+				size = Long.parseLong(lengthHeader.trim());
+			} catch (NumberFormatException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad Content-Length");
+				return;
+			}
+		}
+
+		RMFile newFile;
+		String id = request.getParameter("id");
+		if (id == null)
+			newFile = new RMFile(filename, contentType, size, null);
+		else if (UUID_PATTERN.matcher(id).matches())
+			newFile = new RMFile(id, filename, contentType, size, null);
+		else {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "File ID must be a UUID");
+			return;
+		}
+		if (!node.getFileRepository().startPublishing(newFile)) {
+			response.sendError(HttpServletResponse.SC_CONFLICT, "File " + id + " already exists");
+			return;
+		}
+		node.getLog().info("Publishing new file (via web): " + newFile.getId() + " (" + filename + ")");
+
+		InputStream data = request.getInputStream();
+		if (size < 0)
+			data = new ChunkedUploadStream(data, AbstractHttpConnection.getCurrentConnection().getEndPoint());
+		try {
+			node.getFileRepository().publish(newFile, data);
+		} catch (IOException e) {
+			node.getLog().warn("Publishing file " + newFile.getId() + " failed: " + e.getMessage());
+			throw e;
+		}
+
+		response.setHeader("Date", HTTPUtils.getServerTime(0));
+		response.setStatus(HttpServletResponse.SC_CREATED);
+		response.setContentType("text/plain");
+		response.setHeader("Location", "http://" + node.getPublicIP() + ":"
+			+ node.getConfig().getInt("port.http", 8080) + "/files/" + newFile.getId() + "/"
+			+ HTTPUtils.encodePathSegment(filename));
+		response.getWriter().print(newFile.getId() + " " + Hex.encodeHexString(newFile.getHash()) + " "
+			+ newFile.getSize() + "\n");
+		node.getLog().info("Published file " + newFile.getId() + " (" + filename + ", " + newFile.getSize() + " bytes)");
+	}
+
+	/*
+	 * Jetty treats a chunked request body that is cut off by the connection
+	 * closing the same as one that ended properly, so without a length to
+	 * check against, a failed upload would be published as a short file. This
+	 * checks the connection is still there whenever the body seems to end.
+	 */
+	private static class ChunkedUploadStream extends FilterInputStream {
+		private EndPoint endPoint;
+
+		public ChunkedUploadStream(InputStream in, EndPoint endPoint) {
+			super(in);
+			this.endPoint = endPoint;
+		}
+
+		public int read() throws IOException {
+			return checkEnd(super.read());
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return checkEnd(super.read(b, off, len));
+		}
+
+		private int checkEnd(int result) throws IOException {
+			if (result == -1 && (!endPoint.isOpen() || endPoint.isInputShutdown()))
+				throw new EOFException("Connection closed before the end of the upload");
+			return result;
+		}
+	}
+
 	/* Util */
 
 	// Parse a filename out of the form data.
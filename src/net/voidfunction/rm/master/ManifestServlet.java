@@ -0,0 +1,190 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.master;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+import org.apache.commons.codec.binary.Hex;
+
+import net.voidfunction.rm.common.*;
+
+/**
+ * Servlet that gives out Metalink (RFC 5854) manifests, listing every replica
+ * of a file along with its size and hashes. A download manager can then fetch
+ * ranges of a large file from several workers at once and check each one,
+ * instead of being limited to the one worker FileServlet redirects to.
+ * 
+ * A manifest for one file is at /manifest/[id] (a file name may follow the ID);
+ * one for several files is at /manifest?id=[id]&id=[id]... The URLs of each file
+ * are listed in the order FileServlet would prefer them, with the master itself
+ * last. Files larger than one piece also get SHA-256 hashes of each piece. These
+ * are worked out in the background the first time they are asked for, and left
+ * out of the manifest until they are ready.
+ */
+public class ManifestServlet extends HttpServlet {
+
+	private static final long serialVersionUID = -2035866316498730641L;
+
+	private MasterNode node;
+	private MasterFileLocator locator;
+	private FileDownloadListener dlListener;
+	private ClientRateLimiter clientLimiter;
+	private int pieceSize;
+
+	public ManifestServlet(MasterNode node, MasterFileLocator locator, FileDownloadListener dlListener) {
+		this.node = node;
+		this.locator = locator;
+		this.dlListener = dlListener;
+		this.pieceSize = node.getConfig().getInt("manifest.piecesize", 1024) * 1024;
+	}
+
+	/**
+	 * Set the ClientRateLimiter used to turn away clients making too many
+	 * requests. Each file asked for counts as one request.
+	 * @param clientLimiter
+	 */
+	public void setClientLimiter(ClientRateLimiter clientLimiter) {
+		this.clientLimiter = clientLimiter;
+	}
+
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+		IOException {
+		List<String> ids = new ArrayList<String>();
+		String path = request.getPathInfo();
+		if (path != null && path.length() > 1) {
+			int idEnd = path.indexOf('/', 1);
+			ids.add(path.substring(1, idEnd == -1 ? path.length() : idEnd));
+		}
+		String[] params = request.getParameterValues("id");
+		if (params != null)
+			for (String param : params)
+				ids.add(param);
+		if (ids.size() == 0) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No file IDs given");
+			return;
+		}
+
+		if (clientLimiter != null && !clientLimiter.check(request, response, ids.size()))
+			return;
+
+		List<RMFile> files = new ArrayList<RMFile>(ids.size());
+		for (String id : ids) {
+			RMFile file = node.getFileRepository().getFileById(id);
+			if (file == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "File " + id + " not found");
+				return;
+			}
+			files.add(file);
+		}
+
+		String clientAddr = request.getRemoteAddr();
+		String masterBase = "http://" + node.getPublicIP() + ":" + node.getConfig().getInt("port.http", 8080)
+			+ "/files/";
+
+		StringBuilder xml = new StringBuilder(512 * files.size());
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<metalink xmlns=\"urn:ietf:params:xml:ns:metalink\">\n");
+		for (RMFile file : files) {
+			xml.append("  <file name=\"");
+			appendEscaped(xml, file.getName());
+			xml.append("\">\n");
+			xml.append("    <size>").append(file.getSize()).append("</size>\n");
+			xml.append("    <hash type=\"sha-256\">").append(Hex.encodeHex(file.getHash())).append("</hash>\n");
+
+			byte[][] pieces = getPieceHashes(file);
+			if (pieces != null) {
+				xml.append("    <pieces length=\"").append(pieceSize).append("\" type=\"sha-256\">\n");
+				for (byte[] piece : pieces)
+					xml.append("      <hash>").append(Hex.encodeHex(piece)).append("</hash>\n");
+				xml.append("    </pieces>\n");
+			}
+
+			String fileName = HTTPUtils.encodePathSegment(file.getName());
+			List<String> urls = locator.locateURLs(file.getId(), fileName, clientAddr, Integer.MAX_VALUE);
+			urls.add(masterBase + file.getId() + "/" + fileName);
+			for (int i = 0; i < urls.size(); i++) {
+				xml.append("    <url priority=\"").append(i + 1).append("\">");
+				appendEscaped(xml, urls.get(i));
+				xml.append("</url>\n");
+			}
+			xml.append("  </file>\n");
+
+			if (dlListener != null)
+				dlListener.fileDownloaded(file);
+		}
+		xml.append("</metalink>\n");
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/metalink4+xml; charset=UTF-8");
+		// The list of replicas changes as files are replicated
+		response.setHeader("Cache-Control", "no-store");
+		response.getWriter().write(xml.toString());
+	}
+
+	// Get the piece hashes of a file. Returns null for files that fit in one
+	// piece (or if pieces are turned off), and until they have been worked out.
+	private byte[][] getPieceHashes(RMFile file) {
+		if (pieceSize <= 0 || file.getSize() <= pieceSize)
+			return null;
+		return node.getFileRepository().getPieceHashes(file, pieceSize);
+	}
+
+	// Append text to the XML output, escaped for use in content or an attribute
+	private static void appendEscaped(StringBuilder xml, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '&':
+				xml.append("&amp;");
+				break;
+			case '<':
+				xml.append("&lt;");
+				break;
+			case '>':
+				xml.append("&gt;");
+				break;
+			case '"':
+				xml.append("&quot;");
+				break;
+			default:
+				xml.append(c);
+			}
+		}
+	}
+
+}
@@ -32,6 +32,7 @@
 
 package net.voidfunction.rm.master;
 
+import net.voidfunction.rm.common.HotFileCache;
 import net.voidfunction.rm.common.NodeConsoleHandler;
 
 /**
@@ -39,6 +40,12 @@ import net.voidfunction.rm.common.NodeConsoleHandler;
  */
 public class MasterConsoleHandler implements NodeConsoleHandler {
 
+	private MasterNode node;
+
+	public MasterConsoleHandler(MasterNode node) {
+		this.node = node;
+	}
+
 	@Override
 	public String handle(String line) {
 		String[] parts = line.split(" ");
@@ -46,6 +53,12 @@ public class MasterConsoleHandler implements NodeConsoleHandler {
 			// TODO: Log?
 			System.exit(1);
 		}
+		if (parts[0].equals("cache")) {
+			HotFileCache cache = node.getFileRepository().getCache();
+			if (cache == null)
+				return "File cache is disabled.";
+			return cache.getStats();
+		}
 		return null;
 	}
 
@@ -32,33 +32,227 @@
 
 package net.voidfunction.rm.master;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.jgroups.Address;
 
+import net.voidfunction.rm.common.BundleLocator;
 import net.voidfunction.rm.common.FileLocator;
+import net.voidfunction.rm.common.URLSigner;
 
 /**
  * Implementation of FileLocator for the master node's FileServlet. Looks in
  * the master node's WorkerDirectory to see if a worker has the file, and if
- * so we redirect to a random worker instead of serving it ourselves.
+ * so we redirect to a worker instead of serving it ourselves.
+ * 
+ * The worker is chosen by rendezvous hashing on the client address, file ID and
+ * worker: each client sticks to one worker per file without us keeping any
+ * per-client state, clients are spread evenly across the replicas, and when a
+ * worker leaves only the clients that were using it are moved elsewhere.
+ * 
+ * Scores are weighted by each worker's reported upload limit, so a worker
+ * gets a share of clients in proportion to the bandwidth it can offer.
+ * Workers without a limit count as having a configurable default.
+ * 
+ * Bundles of several files only go to a worker that holds all of them (and
+ * serves bundles at all), chosen among those the same way as for single files.
+ * 
+ * If enabled, the worker URLs handed out are signed (see URLSigner), so that
+ * workers can insist on clients having been sent by us.
  */
-public class MasterFileLocator implements FileLocator {
+public class MasterFileLocator implements FileLocator, BundleLocator {
 	
 	private MasterNode node;
+	private int defaultBandwidth;
+	private URLSigner signer;
 	
 	public MasterFileLocator(MasterNode node) {
 		this.node = node;
+		this.defaultBandwidth = Math.max(1, node.getConfig().getInt("worker.bandwidth.default", 10240));
+		if (node.getConfig().getBool("http.signedurls", false))
+			this.signer = new URLSigner(node.getConfig().getString("password", ""), node.getConfig().getInt(
+				"http.signedurls.lifetime", 3600));
+	}
+
+	/**
+	 * Get the URLSigner used to sign the worker URLs we hand out, or null if
+	 * they aren't signed.
+	 * @return
+	 */
+	public URLSigner getURLSigner() {
+		return signer;
 	}
 	
-	public String locateURL(String fileId, String fileName) {
+	public String locateURL(String fileId, String fileName, String clientAddr, String exclude) {
 		List<Address> workers = node.getWorkerDirectory().getWorkersWithFile(fileId);
 		if (workers.size() == 0)
 			return null;
 		
-		Address worker = workers.get(0); // List is pre-randomized by the worker directory
-		return "http://" + node.getWorkerDirectory().getWorkerHostAndPort(worker) +
-			"/files/" + fileId + "/" + fileName;
+		// Pick the worker with the highest score for this client and file
+		String bestHost = null;
+		double bestScore = 0;
+		long keyHash = hash(hash(FNV_OFFSET, clientAddr), fileId);
+		for (Address worker : workers) {
+			String hostAndPort = node.getWorkerDirectory().getWorkerHostAndPort(worker);
+			if (hostAndPort == null)
+				continue; // Left while we were looking
+			if (exclude != null && listContains(exclude, hostAndPort))
+				continue; // Turned the client away already
+			double score = score(keyHash, worker, hostAndPort);
+			if (bestHost == null || score > bestScore) {
+				bestHost = hostAndPort;
+				bestScore = score;
+			}
+		}
+		if (bestHost == null)
+			return null;
+
+		return fileURL(bestHost, fileId, fileName);
+	}
+
+	/**
+	 * Like locateURL, but returns up to max URLs in order of preference, so
+	 * that a client can fall back to the next one if a worker goes away. The
+	 * first URL is the one locateURL would give. Returns an empty list if no
+	 * worker has the file.
+	 * @param fileId
+	 * @param fileName
+	 * @param clientAddr
+	 * @param max
+	 * @return
+	 */
+	public List<String> locateURLs(String fileId, String fileName, String clientAddr, int max) {
+		List<Address> workers = node.getWorkerDirectory().getWorkersWithFile(fileId);
+		List<String> hosts = new ArrayList<String>(Math.min(max, workers.size()));
+		double[] scores = new double[Math.min(max, workers.size())];
+		
+		// Keep the best max workers, sorted by descending score
+		long keyHash = hash(hash(FNV_OFFSET, clientAddr), fileId);
+		for (Address worker : workers) {
+			String hostAndPort = node.getWorkerDirectory().getWorkerHostAndPort(worker);
+			if (hostAndPort == null)
+				continue;
+			double score = score(keyHash, worker, hostAndPort);
+			int pos = hosts.size();
+			while (pos > 0 && score > scores[pos - 1])
+				pos--;
+			if (pos >= max)
+				continue;
+			if (hosts.size() == max)
+				hosts.remove(max - 1);
+			System.arraycopy(scores, pos, scores, pos + 1, hosts.size() - pos);
+			scores[pos] = score;
+			hosts.add(pos, hostAndPort);
+		}
+
+		for (int i = 0; i < hosts.size(); i++)
+			hosts.set(i, fileURL(hosts.get(i), fileId, fileName));
+		return hosts;
+	}
+
+	// Build the URL of a file on a worker
+	private String fileURL(String hostAndPort, String fileId, String fileName) {
+		String url = "http://" + hostAndPort + "/files/" + fileId + "/" + fileName;
+		if (signer != null)
+			url += "?" + signer.sign(fileId);
+		return url;
+	}
+
+	public String locateBundle(Collection<String> fileIds, String clientAddr) {
+		// Count how many of the files each worker has
+		Map<Address, Integer> counts = new HashMap<Address, Integer>();
+		for (String fileId : fileIds) {
+			for (Address worker : node.getWorkerDirectory().getWorkersWithFile(fileId)) {
+				Integer count = counts.get(worker);
+				counts.put(worker, count == null ? 1 : count + 1);
+			}
+		}
+
+		String bestHost = null;
+		int bestCount = 0;
+		double bestScore = 0;
+		long keyHash = hash(FNV_OFFSET, clientAddr);
+		for (Map.Entry<Address, Integer> entry : counts.entrySet()) {
+			if (!node.getWorkerDirectory().workerServesBundles(entry.getKey()))
+				continue;
+			String hostAndPort = node.getWorkerDirectory().getWorkerHostAndPort(entry.getKey());
+			if (hostAndPort == null)
+				continue;
+			int count = entry.getValue();
+			if (count < bestCount)
+				continue;
+			double score = score(keyHash, entry.getKey(), hostAndPort);
+			if (count > bestCount || score > bestScore) {
+				bestHost = hostAndPort;
+				bestCount = count;
+				bestScore = score;
+			}
+		}
+		if (bestHost == null || bestCount < fileIds.size())
+			return null;
+
+		return "http://" + bestHost;
+	}
+
+	// This worker's score for the client and file that keyHash was made from
+	private double score(long keyHash, Address worker, String hostAndPort) {
+		int bandwidth = node.getWorkerDirectory().getWorkerBandwidth(worker);
+		if (bandwidth <= 0)
+			bandwidth = defaultBandwidth;
+		return weightedScore(mix(hash(keyHash, hostAndPort)), bandwidth);
+	}
+
+	// Whether a comma-separated list contains the given item.
+	private static boolean listContains(String list, String item) {
+		int pos = 0;
+		while (pos <= list.length()) {
+			int end = list.indexOf(',', pos);
+			if (end == -1)
+				end = list.length();
+			if (end - pos == item.length() && list.startsWith(item, pos))
+				return true;
+			pos = end + 1;
+		}
+		return false;
+	}
+
+	/* Hashing for worker selection */
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// 64-bit FNV-1a, continuing from the given hash value
+	private static long hash(long h, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		// Separator, so that ("ab", "c") and ("a", "bc") differ
+		h ^= 0xff;
+		h *= FNV_PRIME;
+		return h;
+	}
+
+	// Turn a hash into a score such that each worker wins with probability
+	// proportional to its weight. The hash is treated as unsigned so that
+	// scores are uniform in (0, 1) before weighting.
+	private static double weightedScore(long h, int weight) {
+		double u = ((h >>> 11) + 0.5) / (double)(1L << 53); // Uniform in (0, 1)
+		return -weight / Math.log(u);
+	}
+
+	// Final avalanche step (from MurmurHash3) so that scores are well spread
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
 	}
 	
 }
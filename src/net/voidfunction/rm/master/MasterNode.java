@@ -73,6 +73,17 @@ public class MasterNode extends Node {
 			System.exit(1);
 		}
 
+		// Set up the in-memory cache for the small files we serve ourselves
+		int cacheSize = config.getInt("cache.size", 64);
+		if (cacheSize > 0 && (config.getInt("http.ratelimit", 0) > 0 || config.getInt("http.ratelimit.connection", 0) > 0)) {
+			// Cached data goes out in one piece, so can't be rate limited
+			getLog().info("File cache disabled, as downloads are rate limited.");
+		} else if (cacheSize > 0) {
+			int cacheMaxFile = config.getInt("cache.maxfilesize", 64);
+			fileRep.setCache(new HotFileCache(cacheSize * 1024L * 1024L, cacheMaxFile * 1024L));
+			getLog().info("File cache enabled (" + cacheSize + " MB, files up to " + cacheMaxFile + " KB).");
+		}
+
 		// Begin starting our network services
 		int baseP2Pport = config.getInt("port.p2p", 1600);
 
@@ -151,12 +162,30 @@ public class MasterNode extends Node {
 		// Create web server
 		int httpPort = config.getInt("port.http", 8080);
 		getLog().info("Starting HTTP server on port " + httpPort + "...");
-		RMHTTPServer httpserver = new RMHTTPServer(httpPort);
+		RMHTTPServer httpserver = new RMHTTPServer(httpPort, config, RMHTTPServer.Preset.REDIRECTOR);
 
 		// Servlets
 		httpserver.addServlet("/admin/*", new AdminServlet(this, "admintemplates/"));
-		FileServlet fileservlet = new FileServlet(this, new MasterFileLocator(this), repManager);
+		MasterFileLocator locator = new MasterFileLocator(this);
+		FileServlet fileservlet = new FileServlet(this, locator, repManager);
+		ResolveServlet resolveservlet = new ResolveServlet(this, locator, repManager);
+		ManifestServlet manifestservlet = new ManifestServlet(this, locator, repManager);
+		BundleServlet bundleservlet = new BundleServlet(this, locator, repManager);
+		bundleservlet.setDownloadLimits(fileservlet.getBandwidthShaper(), fileservlet.getAdmissionController());
+		bundleservlet.setURLSigner(locator.getURLSigner());
+		int clientRate = config.getInt("http.clientlimit.rate", 0);
+		if (clientRate > 0) {
+			ClientRateLimiter clientLimiter = new ClientRateLimiter(clientRate, config.getInt(
+				"http.clientlimit.burst", clientRate * 5), config.getInt("http.clientlimit.slots", 65536));
+			fileservlet.setClientLimiter(clientLimiter, workerDir);
+			resolveservlet.setClientLimiter(clientLimiter);
+			manifestservlet.setClientLimiter(clientLimiter);
+			bundleservlet.setClientLimiter(clientLimiter);
+		}
 		httpserver.addServlet("/files/*", fileservlet);
+		httpserver.addServlet("/resolve", resolveservlet);
+		httpserver.addServlet("/manifest/*", manifestservlet);
+		httpserver.addServlet("/bundle", bundleservlet);
 
 		// Run web server
 		try {
@@ -169,7 +198,7 @@ public class MasterNode extends Node {
 
 		// Console
 		NodeConsole console;
-		NodeConsoleHandler handler = new MasterConsoleHandler();
+		NodeConsoleHandler handler = new MasterConsoleHandler(this);
 		try {
 			console = new NodeConsole(handler);
 			log.setConsole(console);
@@ -72,11 +72,17 @@ public class MasterPacketHandler {
 
 	private void handle_WORKER_INFO(Address source, RMPacket packet) {
 		// New worker node! Store it in the worker directory for later use
+		Integer bandwidth = packet.getInteger("bandwidth");
+		if (bandwidth == null)
+			bandwidth = 0; // Older workers don't report it
+		Boolean bundles = packet.getBoolean("bundles");
+		if (bundles == null)
+			bundles = true; // Nor this, but they all serve bundles
 		node.getLog().info(
 			"Received WORKER_INFO from node " + source + ": " + packet.getString("httphost") + ":"
-			+ packet.getInteger("httpport"));
+			+ packet.getInteger("httpport") + (bandwidth > 0 ? " (limited to " + bandwidth + " KB/s)" : ""));
 		node.getWorkerDirectory().addWorker(source, packet.getString("httphost"),
-			packet.getInteger("httpport"));
+			packet.getInteger("httpport"), bandwidth, bundles);
 	}
 	
 	private void handle_MY_FILES(Address source, RMPacket packet) {
@@ -220,8 +220,20 @@ public class ReplicationManager implements FileDownloadListener {
 	 */
 	private void assignWorkers(Map<Address, ReplicationDecision> decisions, RMFile file, int targetAmt, boolean add) {
 		List<Address> workers;
-		if (add)
+		if (add) {
 			workers = node.getWorkerDirectory().getWorkersWithoutFile(file.getId());
+
+			// Workers holding the same data under another file ID can add it
+			// without downloading anything, so ask them first
+			List<Address> holders = new ArrayList<Address>();
+			for (String twin : node.getFileRepository().getFilesWithSameData(file.getId())) {
+				for (Address worker : node.getWorkerDirectory().getWorkersWithFile(twin)) {
+					if (workers.remove(worker))
+						holders.add(worker);
+				}
+			}
+			workers.addAll(0, holders);
+		}
 		else
 			workers = node.getWorkerDirectory().getWorkersWithFile(file.getId());
 
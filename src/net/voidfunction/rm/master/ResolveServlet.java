@@ -0,0 +1,167 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.master;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.*;
+
+import net.voidfunction.rm.common.*;
+
+/**
+ * Servlet that resolves many file IDs to download URLs in one request, so that
+ * a page referencing dozens of files doesn't need a round trip to the master
+ * for each one just to be redirected.
+ * 
+ * IDs are POSTed either as "id" form parameters or as a plain text body, separated
+ * by whitespace or commas. The response is a JSON object mapping each ID to its
+ * name, a list of URLs in order of preference (the workers FileServlet would
+ * redirect to, then the master itself as a last resort) and a TTL in seconds for
+ * which the mapping may be reused. Unknown IDs map to null.
+ * 
+ * Each resolved file counts as a download, as the redirect would have.
+ */
+public class ResolveServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 3166046296315466407L;
+
+	private MasterNode node;
+	private MasterFileLocator locator;
+	private FileDownloadListener dlListener;
+	private ClientRateLimiter clientLimiter;
+	private int maxIds;
+	private int maxURLs;
+	private int ttl;
+	private int masterTTL;
+
+	public ResolveServlet(MasterNode node, MasterFileLocator locator, FileDownloadListener dlListener) {
+		this.node = node;
+		this.locator = locator;
+		this.dlListener = dlListener;
+		this.maxIds = node.getConfig().getInt("resolve.maxids", 1000);
+		this.maxURLs = Math.max(1, node.getConfig().getInt("resolve.urls", 2));
+		this.ttl = node.getConfig().getInt("resolve.ttl", 300);
+		// Signed URLs mustn't be kept for longer than they are valid
+		if (locator.getURLSigner() != null)
+			this.ttl = Math.min(ttl, locator.getURLSigner().getLifetime());
+		// Files only the master has may get replicas at the next replication run
+		this.masterTTL = Math.min(ttl, node.getConfig().getInt("rep.interval", 60));
+	}
+
+	/**
+	 * Set the ClientRateLimiter used to turn away clients making too many
+	 * requests. Each file asked for counts as one request.
+	 * @param clientLimiter
+	 */
+	public void setClientLimiter(ClientRateLimiter clientLimiter) {
+		this.clientLimiter = clientLimiter;
+	}
+
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+		IOException {
+		Set<String> ids = HTTPUtils.readIdList(request, maxIds);
+		if (ids.size() > maxIds) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "At most " + maxIds
+				+ " IDs per request");
+			return;
+		}
+
+		if (clientLimiter != null && !clientLimiter.check(request, response, ids.size()))
+			return;
+
+		String clientAddr = request.getRemoteAddr();
+		String masterBase = "http://" + node.getPublicIP() + ":" + node.getConfig().getInt("port.http", 8080)
+			+ "/files/";
+
+		StringBuilder json = new StringBuilder(64 + ids.size() * 160);
+		json.append('{');
+		boolean first = true;
+		for (String id : ids) {
+			if (!first)
+				json.append(',');
+			first = false;
+			appendString(json, id);
+			json.append(':');
+
+			RMFile file = node.getFileRepository().getFileById(id);
+			if (file == null) {
+				json.append("null");
+				continue;
+			}
+			String fileName = HTTPUtils.encodePathSegment(file.getName());
+			List<String> urls = locator.locateURLs(id, fileName, clientAddr, maxURLs);
+
+			json.append("{\"name\":");
+			appendString(json, file.getName());
+			json.append(",\"urls\":[");
+			for (String url : urls) {
+				appendString(json, url);
+				json.append(',');
+			}
+			appendString(json, masterBase + id + "/" + fileName);
+			json.append("],\"ttl\":").append(urls.isEmpty() ? masterTTL : ttl).append('}');
+
+			if (dlListener != null)
+				dlListener.fileDownloaded(file);
+		}
+		json.append('}');
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/json; charset=UTF-8");
+		response.setHeader("Cache-Control", "no-store");
+		response.getWriter().write(json.toString());
+	}
+
+	// Append a string to the JSON output as a quoted, escaped literal
+	private static void appendString(StringBuilder json, String s) {
+		json.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if (c < 0x20) {
+				String hex = Integer.toHexString(c);
+				json.append("\\u");
+				for (int j = hex.length(); j < 4; j++)
+					json.append('0');
+				json.append(hex);
+			} else
+				json.append(c);
+		}
+		json.append('"');
+	}
+
+}
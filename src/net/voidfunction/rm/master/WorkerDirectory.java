@@ -42,7 +42,7 @@ import org.jgroups.Address;
  * Stores all information the master node knows about workers in the network,
  * including which files they have and how to reach their web server.
  */
-public class WorkerDirectory {
+public class WorkerDirectory implements KnownWorkers {
 
 	private HashMap<Address, WorkerData> workers;
 	private FileRepository fileRep;
@@ -61,16 +61,19 @@ public class WorkerDirectory {
 	/* Functions for creating/deleting worker records */
 
 	/**
-	 * Creates a new worker record with the given http IP and port. New workers
-	 * will have an empty file list.
+	 * Creates a new worker record with the given http IP and port, upload
+	 * limit in KB/s (0 if unlimited), and whether it serves bundles. New
+	 * workers will have an empty file list.
 	 * 
 	 * @param addr
 	 * @param ip
 	 * @param httpPort
+	 * @param bandwidth
+	 * @param bundles
 	 */
-	public void addWorker(Address addr, String ip, int httpPort) {
+	public void addWorker(Address addr, String ip, int httpPort, int bandwidth, boolean bundles) {
 		if (!workerExists(addr)) {
-			WorkerData newData = new WorkerData(ip, httpPort);
+			WorkerData newData = new WorkerData(ip, httpPort, bandwidth, bundles);
 			workers.put(addr, newData);
 		}
 	}
@@ -109,6 +112,46 @@ public class WorkerDirectory {
 		return null;
 	}
 
+	/**
+	 * Gets the upload limit the given worker reported, in KB/s. Returns 0 if
+	 * the worker is unlimited or unknown.
+	 * 
+	 * @param addr
+	 * @return
+	 */
+	public int getWorkerBandwidth(Address addr) {
+		WorkerData wdata = workers.get(addr);
+		if (wdata == null)
+			return 0;
+		return wdata.getBandwidth();
+	}
+
+	/**
+	 * Returns whether the given worker answers bundle requests. Unknown
+	 * workers don't.
+	 * 
+	 * @param addr
+	 * @return
+	 */
+	public boolean workerServesBundles(Address addr) {
+		WorkerData wdata = workers.get(addr);
+		return wdata != null && wdata.servesBundles();
+	}
+
+	/**
+	 * Returns whether any known worker has the given public IP address.
+	 * 
+	 * @param ip
+	 * @return
+	 */
+	public boolean isWorkerAddress(String ip) {
+		for (WorkerData wdata : workers.values()) {
+			if (wdata.getIp().equals(ip))
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Returns number of known workers active in cluster
 	 * 
@@ -241,6 +284,8 @@ public class WorkerDirectory {
 	private class WorkerData {
 		private String ip;
 		private int httpPort;
+		private int bandwidth;
+		private boolean bundles;
 		private ArrayList<RMFile> files;
 
 		/**
@@ -261,6 +306,24 @@ public class WorkerDirectory {
 			return httpPort;
 		}
 
+		/**
+		 * Returns this node's upload limit in KB/s, or 0 if unlimited.
+		 * 
+		 * @return
+		 */
+		public int getBandwidth() {
+			return bandwidth;
+		}
+
+		/**
+		 * Returns whether this node answers bundle requests.
+		 * 
+		 * @return
+		 */
+		public boolean servesBundles() {
+			return bundles;
+		}
+
 		/**
 		 * Adds a file to this worker's file list.
 		 * 
@@ -295,10 +358,14 @@ public class WorkerDirectory {
 		 * 
 		 * @param ip
 		 * @param httpPort
+		 * @param bandwidth
+		 * @param bundles
 		 */
-		public WorkerData(String ip, int httpPort) {
+		public WorkerData(String ip, int httpPort, int bandwidth, boolean bundles) {
 			this.ip = ip;
 			this.httpPort = httpPort;
+			this.bandwidth = bandwidth;
+			this.bundles = bundles;
 			this.files = new ArrayList<RMFile>();
 		}
 	}
@@ -47,14 +47,14 @@ import net.voidfunction.rm.common.*;
 public class FileFetcher extends Thread {
 
 	// We actively try to prevent multiple fetchers being active for
-	// a given file ID
-	private static HashMap<String, FileFetcher> activeFetchers;
+	// a given file ID (including pull-through fetches)
+	private static HashMap<String, Runnable> activeFetchers;
 	
 	static {
-		activeFetchers = new HashMap<String, FileFetcher>();
+		activeFetchers = new HashMap<String, Runnable>();
 	}
 	
-	private static boolean fetcherStart(String fileId, FileFetcher fetcher) {
+	static boolean fetcherStart(String fileId, Runnable fetcher) {
 		synchronized(activeFetchers) {
 			if (activeFetchers.containsKey(fileId))
 				return false;
@@ -63,7 +63,7 @@ public class FileFetcher extends Thread {
 		}
 	}
 	
-	private static void fetcherEnd(String fileId) {
+	static void fetcherEnd(String fileId) {
 		synchronized(activeFetchers) {
 			activeFetchers.remove(fileId);
 		}
@@ -88,8 +88,7 @@ public class FileFetcher extends Thread {
 		
 		if (!fetcherStart(file.getId(), this)) {
 			node.getLog().warn("FileFetcher for " + file.getId() + " did not start: fetcher already active for this file ID.");
-			fetcherEnd(file.getId());
-			return;
+			return; // The other fetcher's entry isn't ours to remove
 		}
 		
 		// Construct the url
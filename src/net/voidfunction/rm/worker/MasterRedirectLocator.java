@@ -0,0 +1,70 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.worker;
+
+import net.voidfunction.rm.common.FileLocator;
+
+/**
+ * FileLocator used by a worker's FileServlet to send clients back to the master
+ * node: when it is too busy to serve a download, with this worker added to the
+ * list of places the master should not send it again, or when the client needs
+ * a new signed URL.
+ */
+public class MasterRedirectLocator implements FileLocator {
+
+	private WorkerNode node;
+	private boolean excludeSelf;
+
+	public MasterRedirectLocator(WorkerNode node, boolean excludeSelf) {
+		this.node = node;
+		this.excludeSelf = excludeSelf;
+	}
+
+	public String locateURL(String fileId, String fileName, String clientAddr, String exclude) {
+		String masterHost = node.getConfig().getString("master.host", null);
+		int masterPort = node.getMasterPort();
+		if (masterHost == null || node.getMasterAddr() == null || masterPort == 0)
+			return null;
+
+		String url = "http://" + masterHost + ":" + masterPort + "/files/" + fileId + "/" + fileName;
+		if (!excludeSelf)
+			return url;
+		String self = node.getPublicIP() + ":" + node.getConfig().getInt("port.http", 8080);
+		if (exclude == null || exclude.length() == 0)
+			exclude = self;
+		else
+			exclude = exclude + "," + self;
+		return url + "?exclude=" + exclude;
+	}
+
+}
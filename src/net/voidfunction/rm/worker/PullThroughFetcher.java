@@ -0,0 +1,266 @@
+/*
+ * --------------------------
+ * |    Ring Machine 2      |
+ * |                        |
+ * |         /---\          |
+ * |         |   |          |
+ * |         \---/          |
+ * |                        |
+ * | The Crowdsourced CDN   |
+ * --------------------------
+ * 
+ * Copyright (C) 2012 Eric Goodwin
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+
+package net.voidfunction.rm.worker;
+
+import java.io.*;
+import java.net.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import net.voidfunction.rm.common.*;
+
+/**
+ * Fetches files this worker doesn't have when clients ask for them, so that a
+ * stale redirect or cached URL becomes a new replica instead of a 404. The file
+ * is fetched from the master node (which may redirect us to another worker),
+ * written to disk and streamed to every waiting client at the same time.
+ * Concurrent requests for the same file share one fetch.
+ * 
+ * Any client can ask for any ID, so fetches run on a small pool of threads
+ * with a limited queue, turning clients away when it is full, and IDs the
+ * master doesn't know are remembered for a while instead of being asked
+ * about again.
+ * 
+ * The master doesn't tell us about the file beforehand, so its details are
+ * taken from the response headers: type and size from Content-Type and
+ * Content-Length, hash from the ETag, upload time from Last-Modified and the
+ * friendly name from X-RM-Name.
+ */
+public class PullThroughFetcher implements FileMissHandler {
+
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 30000;
+
+	// Most IDs remembered as unknown to the master at once; beyond this the
+	// list is started afresh
+	private static final int MAX_NOT_FOUND = 10000;
+
+	private WorkerNode node;
+	private ConcurrentHashMap<String, GrowingFile> fetches;
+	private ThreadPoolExecutor pool;
+
+	// IDs the master said it doesn't have, and until when to believe it
+	private ConcurrentHashMap<String, Long> notFound;
+	private long notFoundTTL;
+
+	public PullThroughFetcher(WorkerNode node) {
+		this.node = node;
+		this.fetches = new ConcurrentHashMap<String, GrowingFile>();
+		this.notFound = new ConcurrentHashMap<String, Long>();
+
+		int threads = node.getConfig().getInt("http.pullthrough.fetches", 8);
+		int queue = node.getConfig().getInt("http.pullthrough.queue", 64);
+		this.notFoundTTL = node.getConfig().getInt("http.pullthrough.notfoundttl", 30) * 1000L;
+		this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(Math.max(1, queue)));
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	public GrowingFile fetchMissing(String fileId) {
+		GrowingFile growing = fetches.get(fileId);
+		if (growing != null)
+			return growing;
+
+		String masterHost = node.getConfig().getString("master.host", null);
+		if (masterHost == null || node.getMasterAddr() == null)
+			return null;
+		if (node.getFileRepository().checkFile(fileId))
+			return null; // Arrived since the caller looked
+		Long notFoundUntil = notFound.get(fileId);
+		if (notFoundUntil != null) {
+			if (notFoundUntil > System.currentTimeMillis())
+				return null; // The master didn't have it a moment ago
+			notFound.remove(fileId);
+		}
+
+		growing = new GrowingFile(node.getFileRepository().getPartialDataFile(fileId));
+		GrowingFile existing = fetches.putIfAbsent(fileId, growing);
+		if (existing != null)
+			return existing; // Someone beat us to it
+
+		Fetch fetch = new Fetch(fileId, growing, "http://" + masterHost + ":" + node.getMasterPort() + "/files/"
+			+ fileId + "/Worker-Download");
+		if (!FileFetcher.fetcherStart(fileId, fetch)) {
+			// A fetch requested by the master is already under way
+			fetches.remove(fileId, growing);
+			return null;
+		}
+		try {
+			pool.execute(fetch);
+		} catch (RejectedExecutionException e) {
+			// Too many fetches already: the caller gets a failed fetch to answer
+			// with "try again later"
+			fetches.remove(fileId, growing);
+			FileFetcher.fetcherEnd(fileId);
+			growing.fail(new IOException("Too many files being fetched"));
+		}
+		return growing;
+	}
+
+	/**
+	 * One fetch in progress.
+	 */
+	private class Fetch implements Runnable {
+		private String fileId;
+		private GrowingFile growing;
+		private String url;
+
+		// Where the data is, if we turned out to have it under another ID
+		private File linked;
+
+		public Fetch(String fileId, GrowingFile growing, String url) {
+			this.fileId = fileId;
+			this.growing = growing;
+			this.url = url;
+		}
+
+		public void run() {
+			node.getLog().info("Pulling missing file " + fileId + " from the network");
+			File partial = node.getFileRepository().getPartialDataFile(fileId);
+			try {
+				RMFile file = download(partial);
+				synchronized (growing) {
+					// Readers open the data under the GrowingFile's lock, so none can
+					// miss it being moved
+					if (linked != null) {
+						growing.setFile(file);
+						growing.appended(file.getSize());
+						growing.finish(linked);
+					} else {
+						growing.finish(node.getFileRepository().addFile(file, partial));
+					}
+				}
+				node.getLog().info("Pulled file " + fileId + " (" + file.getName() + ")");
+				node.getNetManager().packetSendGotFile(node.getMasterAddr(), fileId);
+			} catch (IOException e) {
+				node.getLog().warn("Could not pull file " + fileId + ": " + e.getMessage());
+				partial.delete();
+				if (e instanceof FileNotFoundException && notFoundTTL > 0) {
+					if (notFound.size() >= MAX_NOT_FOUND)
+						notFound.clear();
+					notFound.put(fileId, System.currentTimeMillis() + notFoundTTL);
+				}
+				growing.fail(e);
+			} finally {
+				fetches.remove(fileId, growing);
+				FileFetcher.fetcherEnd(fileId);
+			}
+		}
+
+		// Download the file's data to the given local file, keeping the
+		// GrowingFile up to date. Returns the file's details.
+		private RMFile download(File partial) throws IOException {
+			HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+			conn.setConnectTimeout(CONNECT_TIMEOUT);
+			conn.setReadTimeout(READ_TIMEOUT);
+			InputStream in = conn.getInputStream(); // Throws FileNotFoundException on 404
+			try {
+				if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+					throw new IOException("HTTP status code != 200 (" + conn.getResponseCode() + ")");
+				RMFile file = fileFromHeaders(conn);
+
+				// No need for the data if we have it already
+				linked = node.getFileRepository().linkFile(file);
+				if (linked != null)
+					return file;
+
+				MessageDigest digest;
+				try {
+					digest = MessageDigest.getInstance("SHA-256");
+				} catch (NoSuchAlgorithmException e) {
+					throw new IOException("SHA-256 not available");
+				}
+
+				OutputStream out = new FileOutputStream(partial);
+				try {
+					growing.setFile(file); // Readers can open the data now it exists
+					byte[] buffer = new byte[32 * 1024];
+					long remaining = file.getSize();
+					while (remaining > 0) {
+						int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+						if (read == -1)
+							throw new EOFException("Connection closed before end of file");
+						out.write(buffer, 0, read);
+						out.flush();
+						digest.update(buffer, 0, read);
+						remaining -= read;
+						growing.appended(read);
+					}
+				} finally {
+					out.close();
+				}
+
+				if (!Arrays.equals(digest.digest(), file.getHash()))
+					throw new IOException("Hash of fetched file does not match");
+				return file;
+			} finally {
+				if (linked != null)
+					conn.disconnect(); // Rather than reading the rest of a body we don't need
+				else
+					in.close();
+			}
+		}
+
+		// Work out the file's details from the response headers.
+		private RMFile fileFromHeaders(HttpURLConnection conn) throws IOException {
+			String etag = conn.getHeaderField("ETag");
+			String name = conn.getHeaderField("X-RM-Name");
+			long size;
+			try {
+				size = Long.parseLong(conn.getHeaderField("Content-Length"));
+			} catch (NumberFormatException e) {
+				throw new IOException("Missing or bad Content-Length");
+			}
+			if (etag == null || name == null || conn.getContentEncoding() != null)
+				throw new IOException("Response doesn't describe the file");
+
+			byte[] hash;
+			try {
+				hash = Hex.decodeHex(etag.replace("\"", "").toCharArray());
+			} catch (DecoderException e) {
+				throw new IOException("Bad ETag: " + etag);
+			}
+
+			RMFile file = new RMFile(fileId, URLDecoder.decode(name, "UTF-8"), conn.getContentType(), size, hash);
+			if (conn.getLastModified() > 0)
+				file.setUploaded(conn.getLastModified());
+			return file;
+		}
+	}
+
+}
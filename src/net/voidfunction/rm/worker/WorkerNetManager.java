@@ -91,6 +91,8 @@ public class WorkerNetManager extends JGroupsListener {
 		RMPacket packet = new RMPacket(RMPacket.Type.WORKER_INFO);
 		packet.setProperty("httphost", node.getPublicIP());
 		packet.setProperty("httpport", node.getConfig().getInt("port.http", 8080));
+		packet.setProperty("bandwidth", node.getConfig().getInt("http.ratelimit", 0));
+		packet.setProperty("bundles", node.servesBundles());
 		sendPacket(target, packet);
 	}
 
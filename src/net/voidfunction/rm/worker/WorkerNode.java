@@ -49,6 +49,7 @@ public class WorkerNode extends Node {
 
 	private Address masterAddr = null;
 	private int masterPort = 0;
+	private boolean nioEngine = false;
 
 	public static void main(String[] args) {
 		new WorkerNode().start();
@@ -72,6 +73,17 @@ public class WorkerNode extends Node {
 			System.exit(1);
 		}
 
+		// Set up the in-memory cache for small, popular files
+		int cacheSize = config.getInt("cache.size", 64);
+		if (cacheSize > 0 && (config.getInt("http.ratelimit", 0) > 0 || config.getInt("http.ratelimit.connection", 0) > 0)) {
+			// Cached data goes out in one piece, so can't be rate limited
+			node.getLog().info("File cache disabled, as downloads are rate limited.");
+		} else if (cacheSize > 0) {
+			int cacheMaxFile = config.getInt("cache.maxfilesize", 1024);
+			fileRep.setCache(new HotFileCache(cacheSize * 1024L * 1024L, cacheMaxFile * 1024L));
+			node.getLog().info("File cache enabled (" + cacheSize + " MB, files up to " + cacheMaxFile + " KB).");
+		}
+
 		// Grab data we need from the config fi;e
 		int P2Pport = config.getInt("port.p2p", 1600);
 		String masterHost = config.getString("master.host", null);
@@ -108,6 +120,14 @@ public class WorkerNode extends Node {
 				"Password not defined! Set password=<pass> in the config file before starting the program.");
 			System.exit(1);
 		}
+		// Pick the HTTP engine now, as the master needs to know what we can serve
+		if (config.getString("http.engine", "jetty").trim().equalsIgnoreCase("nio")) {
+			if (config.getInt("http.ratelimit", 0) > 0 || config.getInt("http.ratelimit.connection", 0) > 0)
+				getLog().warn("The NIO HTTP engine can't limit bandwidth; using Jetty instead.");
+			else
+				nioEngine = true;
+		}
+
 		jgm = new JGroupsManager(this, P2Pport, publicIP, masterHost, masterPort, password);
 		netManager = new WorkerNetManager(this);
 
@@ -124,17 +144,14 @@ public class WorkerNode extends Node {
 		Timer filesCheckTimer = new Timer();
 		filesCheckTimer.schedule(new MyFilesTask(), 180000, 180000); // 3 minutes
 		
-		// Create web server
+		// Create and run web server
 		int httpPort = config.getInt("port.http", 8080);
-		getLog().info("Starting HTTP server on port " + httpPort + "...");
-		RMHTTPServer httpserver = new RMHTTPServer(httpPort);
-		
-		// File servlet
-		httpserver.addServlet("/files/*", new FileServlet(this, null, null));
-		
-		// Run web server
+		getLog().info("Starting " + (nioEngine ? "NIO " : "") + "HTTP server on port " + httpPort + "...");
 		try {
-			httpserver.run();
+			if (nioEngine)
+				startNIOServer(httpPort);
+			else
+				startJettyServer(httpPort);
 		} catch (Exception e) {
 			getLog().fatal("Failed to start HTTP server! " + e.getClass().getName() + " - " + e.getMessage());
 			System.exit(1);
@@ -143,7 +160,7 @@ public class WorkerNode extends Node {
 
 		// Console
 		NodeConsole console;
-		NodeConsoleHandler handler = new WorkerConsoleHandler();
+		NodeConsoleHandler handler = new WorkerConsoleHandler(this);
 		try {
 			console = new NodeConsole(handler);
 			log.setConsole(console);
@@ -153,6 +170,43 @@ public class WorkerNode extends Node {
 
 	}
 
+	// Serve files with FileServlet (and bundles with BundleServlet) in Jetty
+	private void startJettyServer(int httpPort) throws Exception {
+		RMHTTPServer httpserver = new RMHTTPServer(httpPort, config, RMHTTPServer.Preset.FILESERVER);
+		
+		// File servlet
+		FileServlet fileservlet = new FileServlet(this, null, null);
+		BundleServlet bundleservlet = new BundleServlet(this, null, null);
+		bundleservlet.setDownloadLimits(fileservlet.getBandwidthShaper(), fileservlet.getAdmissionController());
+		if (config.getBool("http.admission.redirect", true))
+			fileservlet.setOverflowLocator(new MasterRedirectLocator(this, true));
+		if (config.getBool("http.pullthrough", false))
+			fileservlet.setMissHandler(new PullThroughFetcher(this));
+		if (config.getBool("http.signedurls.required", false)) {
+			URLSigner signer = new URLSigner(config.getString("password", ""), 0);
+			fileservlet.setURLSigner(signer, new MasterRedirectLocator(this, false));
+			bundleservlet.setURLSigner(signer);
+		}
+		httpserver.addServlet("/files/*", fileservlet);
+		httpserver.addServlet("/bundle", bundleservlet);
+		
+		httpserver.run();
+	}
+
+	// Serve files with the lightweight NIOFileServer. It can't wait on a
+	// pull-through fetch, so clients are sent back to the master instead.
+	private void startNIOServer(int httpPort) throws IOException {
+		NIOFileServer httpserver = new NIOFileServer(this, httpPort);
+		if (config.getBool("http.admission.redirect", true))
+			httpserver.setOverflowLocator(new MasterRedirectLocator(this, true));
+		if (config.getBool("http.pullthrough", false))
+			httpserver.setMissLocator(new MasterRedirectLocator(this, true));
+		if (config.getBool("http.signedurls.required", false))
+			httpserver.setURLSigner(new URLSigner(config.getString("password", ""), 0), new MasterRedirectLocator(
+				this, false));
+		httpserver.run();
+	}
+
 	/**
 	 * Retrieve this node's network manager
 	 */
@@ -186,6 +240,15 @@ public class WorkerNode extends Node {
 		return masterPort;
 	}
 	
+	/**
+	 * Whether this node's HTTP server answers bundle requests, which the
+	 * lightweight NIO engine doesn't.
+	 * @return
+	 */
+	public boolean servesBundles() {
+		return !nioEngine;
+	}
+	
 	// Check with the master node periodically re: file list
 	private class MyFilesTask extends TimerTask {
 		public void run() {
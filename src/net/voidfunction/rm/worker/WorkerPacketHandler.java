@@ -111,8 +111,16 @@ public class WorkerPacketHandler {
 		node.getLog().info("Received GET_FILE from node " + source + ".");
 		RMFile file = packet.getFile("file");
 		
-		if (node.getFileRepository().checkFile(file.getId()))
-			// We already have that file
+		boolean have;
+		try {
+			// We may already have that file, or the same data under another ID
+			have = node.getFileRepository().checkFile(file.getId()) || node.getFileRepository().linkFile(file) != null;
+		} catch (IOException e) {
+			node.getLog().warn("Error adding file " + file.getId() + ": " + e.getMessage());
+			return;
+		}
+
+		if (have)
 			node.getNetManager().packetSendGotFile(source, file.getId());
 		
 		else {